@@ -0,0 +1,402 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Provides a compact binary protocol for passing information between server and client.
+ *
+ * The protocol is either negotiated during the plain-text handshake, by appending the {@link #VERSION} token to
+ * the handshake line, or selected by starting the connection with a {@link #HELLO} frame. Each packet is a
+ * length-prefixed frame: the first byte is the number of bytes following it, the second byte is the frame type,
+ * and the rest is the fixed-size payload of that type. All multi-byte values are little-endian. Frames with an
+ * unknown type are skipped, in order to allow extending the protocol.
+ *
+ * Frames are decoded directly from the receive buffer of the session, and sensor data is de-serialized into a
+ * single reused array, therefore a steady stream of data frames is processed without any allocations.
+ *
+ * @author RoliSoft
+ */
+public class BinaryProtocol extends Protocol {
+
+    /**
+     * The version token which the client has to send in the handshake in order to select this protocol.
+     */
+    public static final String VERSION = "bin1";
+
+    /**
+     * Handshake, with the {@link #MAGIC} bytes, the protocol revision, the sensor type as an 8-bit integer and
+     * the name of the device in the rest of the frame. From revision 2, the sensor type is followed by the 64-bit
+     * resume token of a lost session, or zero to start a new one. The server answers with a frame of the same type,
+     * holding the magic bytes, the lower of the client's and its own protocol revision, the port of the UDP data
+     * server as a 16-bit integer and the 64-bit session token for it, or zeros if out-of-band data is not available,
+     * and from revision 2, the 64-bit resume token of the session, or zero if resuming is disabled.
+     */
+    public static final byte HELLO = 0x00;
+
+    /**
+     * Sensor data, with each axis as a 32-bit float, optionally followed by the type of the sensor which the sample
+     * was read from as an 8-bit integer, so that the samples of more sensors can be interleaved.
+     */
+    public static final byte DATA_FLOAT = 0x01;
+
+    /**
+     * Sensor data, with each axis as a 16-bit integer quantized by {@link #QUANTUM}, optionally followed by the type
+     * of the sensor as in {@link #DATA_FLOAT}.
+     */
+    public static final byte DATA_SHORT = 0x02;
+
+    /**
+     * Sensor type change, with the new type as an 8-bit integer.
+     */
+    public static final byte TYPE = 0x03;
+
+    /**
+     * Sensor recalibration request, without payload.
+     */
+    public static final byte RESET = 0x04;
+
+    /**
+     * Click request, with 1 for pressing and 0 for releasing the button.
+     */
+    public static final byte TAP = 0x05;
+
+    /**
+     * Graceful disconnection, without payload.
+     */
+    public static final byte QUIT = 0x06;
+
+    /**
+     * Focus request, with 1 for taking the control of the mouse from the other devices, and 0 for giving it up.
+     */
+    public static final byte FOCUS = 0x07;
+
+    /**
+     * Ping, sent by the server, with its time in microseconds as a 64-bit integer.
+     */
+    public static final byte PING = 0x08;
+
+    /**
+     * Answer to a {@link #PING}, with the time of the server as received in the ping, the time the client
+     * received the ping and the time the client sent the answer, all in microseconds as 64-bit integers.
+     */
+    public static final byte PONG = 0x09;
+
+    /**
+     * The value of one unit in a {@link #DATA_SHORT} frame, giving a range of +/-32 with 0.001 precision.
+     */
+    public static final double QUANTUM = 1.0 / 1024;
+
+    /**
+     * The bytes following the type in a {@link #HELLO} frame.
+     */
+    private static final byte[] MAGIC = { 'R', 'S', 'A', 'M' };
+
+    /**
+     * The protocol revision sent in a {@link #HELLO} frame.
+     */
+    private static final byte REVISION = 2;
+
+    private final double[] _sample = new double[DataProcessorEngine.SAMPLE_SIZE];
+    private boolean _skipLf;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param session The session in which this protocol is spoken.
+     */
+    public BinaryProtocol(Session session) {
+        super(session);
+    }
+
+    /**
+     * Initializes the current instance, after it was negotiated in the plain-text handshake.
+     *
+     * @param session The session in which this protocol is spoken.
+     * @param skipLf  Value indicating whether the handshake line ended with a carriage return at the end of the
+     *                received data, in which case a line feed after it still belongs to the line, and is skipped.
+     */
+    public BinaryProtocol(Session session, boolean skipLf) {
+        super(session);
+
+        _skipLf = skipLf;
+    }
+
+    /**
+     * Peeks into the receive buffer to decide whether the client is starting with a {@link #HELLO} frame.
+     *
+     * @param buf The receive buffer.
+     *
+     * @return One of the detection results defined in {@see ProtocolRegistry}.
+     */
+    public static int detect(ByteBuffer buf) {
+        int pos = buf.position();
+
+        for (int i = -1; i < MAGIC.length; i++) {
+            if (pos + 2 + i >= buf.limit()) {
+                return ProtocolRegistry.UNDECIDED;
+            }
+
+            if (buf.get(pos + 2 + i) != (i == -1 ? HELLO : MAGIC[i])) {
+                return ProtocolRegistry.MISMATCH;
+            }
+        }
+
+        return ProtocolRegistry.MATCH;
+    }
+
+    /**
+     * Initiates a handshake with the client, by reading its {@link #HELLO} frame and answering it.
+     * When the protocol was negotiated through the plain-text handshake, this is not called.
+     *
+     * @return This instance, or null if the frame was not yet fully received.
+     *
+     * @throws IOException Occurs when handshake or stream is invalid.
+     */
+    @Override
+    public Protocol handshake() throws IOException {
+        ByteBuffer buf = getSession().getReadBuffer();
+
+        if (!buf.hasRemaining() || buf.remaining() < 1 + (buf.get(buf.position()) & 0xFF)) {
+            if (getSession().isEndOfStream()) {
+                throw new IOException("Handshake error, connection closed.");
+            }
+
+            return null;
+        }
+
+        int len = buf.get(buf.position()) & 0xFF;
+        int pos = buf.position() + 1;
+
+        if (len < 1 + MAGIC.length + 2 || detect(buf) != ProtocolRegistry.MATCH) {
+            throw new IOException("Handshake error, frame not valid.");
+        }
+
+        int revision = buf.get(pos + 1 + MAGIC.length) & 0xFF;
+        int type = buf.get(pos + 1 + MAGIC.length + 1) & 0xFF;
+        int nameStart = pos + 1 + MAGIC.length + 2;
+        long resume = 0;
+        String host;
+
+        try {
+            if (revision >= 2) {
+                if (len < 1 + MAGIC.length + 2 + 8) {
+                    throw new IOException("Handshake error, frame not valid.");
+                }
+
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                resume = buf.getLong(nameStart);
+                nameStart += 8;
+            }
+
+            host = new String(buf.array(), buf.arrayOffset() + nameStart, pos + len - nameStart, StandardCharsets.UTF_8);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException("Handshake error, frame not valid.", ex);
+        }
+
+        buf.position(pos + len);
+
+        long token = openDataSession();
+        int port = token != 0 ? getDataPort() : 0;
+
+        // The client is answered in its own revision, so an older one is not sent fields it does not know.
+        int reply = Math.min(revision, REVISION);
+        int size = 1 + MAGIC.length + 1 + 2 + 8 + (reply >= 2 ? 8 : 0);
+
+        ByteBuffer out = getSession().beginWrite(1 + size);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte)size);
+        out.put(HELLO);
+        out.put(MAGIC);
+        out.put((byte)reply);
+        out.putShort((short)port);
+        out.putLong(token);
+
+        if (reply >= 2) {
+            out.putLong(getSession().getResumeToken());
+        }
+
+        getSession().flush();
+
+        fireClientConnected(host, type, resume);
+
+        return this;
+    }
+
+    /**
+     * Reads the next frame from the stream and processes it.
+     *
+     * Sensor data is passed along through the {@see SampleCoalescer} of the session, which
+     * only keeps the newest sample when more of them are already waiting on the socket.
+     *
+     * @return {@link #CONTINUE}, {@link #INCOMPLETE} or {@link #CLOSE}.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    @Override
+    public int readNext() throws IOException {
+        ByteBuffer buf = getSession().getReadBuffer();
+
+        if (_skipLf && buf.hasRemaining()) {
+            _skipLf = false;
+
+            if (buf.get(buf.position()) == '\n') {
+                buf.position(buf.position() + 1);
+            }
+        }
+
+        if (!buf.hasRemaining()) {
+            return getSession().isEndOfStream() ? CLOSE : INCOMPLETE;
+        }
+
+        int len = buf.get(buf.position()) & 0xFF;
+
+        if (len == 0) {
+            throw new IOException("Malformed frame received, length is zero.");
+        }
+
+        if (buf.remaining() < 1 + len) {
+            return getSession().isEndOfStream() ? CLOSE : INCOMPLETE;
+        }
+
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        int pos = buf.position() + 1;
+        byte type = buf.get(pos);
+        pos++;
+
+        buf.position(buf.position() + 1 + len);
+
+        if (DiagnosticLog.PACKETS.sample()) {
+            DiagnosticLog.PACKETS.log("Frame received of type {0}", type);
+        }
+
+        switch (type) {
+            case DATA_FLOAT:
+            case DATA_SHORT: {
+                if (!decodeSample(buf, pos, type, len, _sample)) {
+                    throw new IOException("Malformed frame received, length is " + len + ".");
+                }
+
+                fireSensorDataReceived(_sample);
+                break;
+            }
+
+            case TYPE: {
+                expect(len, 1 + 1);
+
+                int sensor = buf.get(pos) & 0xFF;
+
+                fireSensorChangeReceived(sensor);
+                break;
+            }
+
+            case RESET: {
+                expect(len, 1);
+
+                fireSensorRecalibrateRequest();
+                break;
+            }
+
+            case TAP: {
+                expect(len, 1 + 1);
+
+                boolean release = buf.get(pos) == 0;
+
+                fireClickRequested(release);
+                break;
+            }
+
+            case QUIT: {
+                return CLOSE;
+            }
+
+            case FOCUS: {
+                expect(len, 1 + 1);
+
+                boolean take = buf.get(pos) != 0;
+
+                fireFocusRequested(take);
+                break;
+            }
+
+            case PONG: {
+                expect(len, 1 + 8 + 8 + 8);
+
+                firePongReceived(buf.getLong(pos), buf.getLong(pos + 8), buf.getLong(pos + 16));
+                break;
+            }
+        }
+
+        return CONTINUE;
+    }
+
+    /**
+     * Sends a {@link #PING} frame to the client.
+     *
+     * @param time The server time in microseconds, which the client has to echo.
+     *
+     * @return Always true.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    @Override
+    public boolean sendPing(long time) throws IOException {
+        ByteBuffer out = getSession().beginWrite(1 + 1 + 8);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte)(1 + 8));
+        out.put(PING);
+        out.putLong(time);
+        getSession().flush();
+
+        return true;
+    }
+
+    /**
+     * De-serializes the payload of a sensor data frame into the specified array.
+     * The byte order of the buffer has to be set to little-endian by the caller.
+     *
+     * @param buf    The buffer holding the frame.
+     * @param pos    The index of the first byte of the payload.
+     * @param type   The type of the frame.
+     * @param len    The length of the frame, including the type byte.
+     * @param sample The array to write the three axes and the sensor tag to.
+     *
+     * @return Value indicating whether the frame was a valid sensor data frame.
+     */
+    static boolean decodeSample(ByteBuffer buf, int pos, byte type, int len, double[] sample) {
+        int size;
+
+        if (type == DATA_FLOAT && (len == 1 + 3 * 4 || len == 1 + 3 * 4 + 1)) {
+            sample[0] = buf.getFloat(pos);
+            sample[1] = buf.getFloat(pos + 4);
+            sample[2] = buf.getFloat(pos + 8);
+            size = 3 * 4;
+        } else if (type == DATA_SHORT && (len == 1 + 3 * 2 || len == 1 + 3 * 2 + 1)) {
+            sample[0] = buf.getShort(pos) * QUANTUM;
+            sample[1] = buf.getShort(pos + 2) * QUANTUM;
+            sample[2] = buf.getShort(pos + 4) * QUANTUM;
+            size = 3 * 2;
+        } else {
+            return false;
+        }
+
+        sample[DataProcessorEngine.SENSOR] = len > 1 + size ? buf.get(pos + size) & 0xFF : 0;
+        return true;
+    }
+
+    /**
+     * Verifies that a frame has the fixed length of its type.
+     *
+     * @param len      The length of the received frame.
+     * @param expected The length of the frame type.
+     *
+     * @throws IOException Occurs when the length does not match.
+     */
+    private static void expect(int len, int expected) throws IOException {
+        if (len != expected) {
+            throw new IOException("Malformed frame received, length is " + len + " instead of " + expected + ".");
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Estimates the round-trip time to a device and the offset of its clock, from ping/pong exchanges.
+ *
+ * The server sends its own time in the ping, and the device answers with that time, the time it received the ping
+ * and the time it sent the answer, all in microseconds. Just like in NTP, the round-trip time is the time the
+ * exchange took on the server, minus the time the device held the ping, and the offset is the average of the
+ * differences of the two legs. The offset is taken from the exchange with the lowest round-trip time of the last
+ * {@link #WINDOW} ones, since that one was the least delayed by queueing, and therefore the most accurate.
+ *
+ * Once synchronized, timestamps of the device can be converted to server time, and the age of the samples
+ * can be computed, regardless of how the clock of the device is set.
+ *
+ * @author RoliSoft
+ */
+public class ClockEstimator {
+
+    /**
+     * The number of recent exchanges from which the least delayed one is selected.
+     */
+    public static final int WINDOW = 8;
+
+    /**
+     * The longest round-trip time in microseconds which is still accepted, anything longer is a bogus answer.
+     */
+    private static final long MAX_RTT = 60_000_000L;
+
+    private final long[] _rtts = new long[WINDOW];
+    private final long[] _offsets = new long[WINDOW];
+    private int _count;
+    private int _next;
+
+    private volatile long _rtt;
+    private volatile long _minRtt;
+    private volatile long _offset;
+    private volatile boolean _synchronized;
+
+    /**
+     * Initializes the current instance.
+     */
+    public ClockEstimator() {
+
+    }
+
+    /**
+     * Gets the current server time in microseconds, which is sent in the pings.
+     * This is a monotonic clock, therefore it is not affected by changes of the system time.
+     *
+     * @return Server time in microseconds.
+     */
+    public static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Gets a value indicating whether any exchanges were completed, and the estimates are available.
+     *
+     * @return Value indicating whether the clock is synchronized.
+     */
+    public boolean isSynchronized() {
+        return _synchronized;
+    }
+
+    /**
+     * Gets the smoothed round-trip time.
+     *
+     * @return Round-trip time in microseconds, or -1 if not synchronized.
+     */
+    public long getRoundTripTime() {
+        return _synchronized ? _rtt : -1;
+    }
+
+    /**
+     * Gets the lowest round-trip time of the recent exchanges.
+     *
+     * @return Round-trip time in microseconds, or -1 if not synchronized.
+     */
+    public long getMinimumRoundTripTime() {
+        return _synchronized ? _minRtt : -1;
+    }
+
+    /**
+     * Gets the offset of the clock of the device, which has to be subtracted from device time to get server time.
+     *
+     * @return Clock offset in microseconds.
+     */
+    public long getOffset() {
+        return _offset;
+    }
+
+    /**
+     * Converts a timestamp of the device to server time.
+     *
+     * @param deviceTime Device time in microseconds.
+     *
+     * @return Server time in microseconds.
+     */
+    public long toServerTime(long deviceTime) {
+        return deviceTime - _offset;
+    }
+
+    /**
+     * Gets the age of a sample which was taken at the specified time on the device.
+     *
+     * @param deviceTime Device time in microseconds.
+     *
+     * @return Age of the sample in microseconds.
+     */
+    public long getAge(long deviceTime) {
+        return now() - toServerTime(deviceTime);
+    }
+
+    /**
+     * Updates the estimates with a completed exchange.
+     *
+     * @param sent     The server time when the ping was sent, as echoed by the device.
+     * @param received The device time when the ping was received.
+     * @param answered The device time when the answer was sent.
+     * @param arrived  The server time when the answer arrived.
+     *
+     * @return Value indicating whether the exchange was plausible, and therefore used.
+     */
+    public boolean update(long sent, long received, long answered, long arrived) {
+        long held = answered - received;
+        long rtt = (arrived - sent) - held;
+
+        if (arrived < sent || arrived - sent > MAX_RTT || held < 0) {
+            return false;
+        }
+
+        if (rtt < 0) {
+            rtt = 0;
+        }
+
+        _rtts[_next] = rtt;
+        _offsets[_next] = ((received - sent) + (answered - arrived)) / 2;
+        _next = (_next + 1) % WINDOW;
+
+        if (_count < WINDOW) {
+            _count++;
+        }
+
+        int best = 0;
+        for (int i = 1; i < _count; i++) {
+            if (_rtts[i] < _rtts[best]) {
+                best = i;
+            }
+        }
+
+        _minRtt = _rtts[best];
+        _offset = _offsets[best];
+        _rtt = _synchronized ? _rtt + (rtt - _rtt) / 8 : rtt;
+        _synchronized = true;
+
+        return true;
+    }
+
+}
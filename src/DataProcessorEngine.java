@@ -2,8 +2,9 @@ import java.lang.String;
 
 /**
  * Represents an abstract class to accept raw sensor data and process it.
- * When overridden, this class is responsible of processing the String data received from the client device,
- * and passing the results of the filter along to the active mouse handler.
+ * The data received from the client device is passed through a {@see SensorPipeline} of calibration, deadzone,
+ * scaling, filtering and transfer stages, and the result is passed along to the active mouse handler.
+ * When overridden, this class is responsible of configuring the pipeline for the type of its sensor.
  *
  * @author RoliSoft
  */
@@ -20,21 +21,179 @@ public abstract class DataProcessorEngine {
     public static final int GYROSCOPE = 2;
 
     /**
-     * Processes the data received from the client device. Upon the data is processed, the data will be passed
-     * to the active mouse handler on this instance as returned by {@see DataProcessorEngine.getMouseHandler()}.
+     * The number representing the fusion of the accelerometer and the gyroscope sensors.
+     */
+    public static final int FUSION = 3;
+
+    /**
+     * The number of values in a sample: the X, Y and Z axes, followed by the {@link #SENSOR} tag.
+     */
+    public static final int SAMPLE_SIZE = 4;
+
+    /**
+     * The index of the value in a sample which tells which sensor it was read from: {@link #ACCELEROMETER},
+     * {@link #GYROSCOPE}, or zero if the client did not tell, in which case the sample is from the sensor of
+     * the session.
+     */
+    public static final int SENSOR = 3;
+
+    private PointerArbiter.Device _device;
+    private final int _type;
+    private final SensorPipeline _pipeline;
+    private final SensorSample _sample;
+
+    /**
+     * Initializes the current instance, with the pipeline configured for the specified sensor type.
+     *
+     * @param type The sensor type of the engine.
+     */
+    protected DataProcessorEngine(int type) {
+        _type = type;
+        _pipeline = SensorPipeline.forType(type);
+        _sample = new SensorSample();
+    }
+
+    /**
+     * Gets the sensor type of this engine.
+     *
+     * @return {@link #ACCELEROMETER}, {@link #GYROSCOPE} or {@link #FUSION}.
+     */
+    public int getType() {
+        return _type;
+    }
+
+    /**
+     * Gets the device through which the heading is set, or null if it is set directly on the {@see MouseHandler}.
+     *
+     * @return Arbitrated device or null.
+     */
+    public PointerArbiter.Device getDevice() {
+        return _device;
+    }
+
+    /**
+     * Sets the device through which the heading is set, so that the {@see PointerArbiter} can decide
+     * whether this engine controls the mouse, when more devices are connected.
+     *
+     * @param device Arbitrated device, or null to set the heading directly on the {@see MouseHandler}.
+     */
+    public void setDevice(PointerArbiter.Device device) {
+        _device = device;
+    }
+
+    /**
+     * Gets the pipeline through which the samples of this engine are processed.
+     *
+     * @return Sensor pipeline.
+     */
+    public SensorPipeline getPipeline() {
+        return _pipeline;
+    }
+
+    /**
+     * Gets the curve which maps the calibrated sensor values to the speed of the mouse.
+     *
+     * @return Transfer function.
+     */
+    public TransferFunction getTransferFunction() {
+        return _pipeline.getTransferFunction();
+    }
+
+    /**
+     * Sets the curve which maps the calibrated sensor values to the speed of the mouse.
+     *
+     * @param curve Transfer function.
+     */
+    public void setTransferFunction(TransferFunction curve) {
+        _pipeline.setTransferFunction(curve);
+    }
+
+    /**
+     * Gets the filter which smooths the calibrated sensor values.
      *
-     * @param data The data received from the client.
+     * @return Sensor filter.
+     */
+    public SensorFilter getFilter() {
+        return _pipeline.getFilter();
+    }
+
+    /**
+     * Sets the filter which smooths the calibrated sensor values.
+     *
+     * @param filter Sensor filter.
+     */
+    public void setFilter(SensorFilter filter) {
+        _pipeline.setFilter(filter);
+    }
+
+    /**
+     * Processes the data received from the client device. The data is passed through the pipeline of this engine,
+     * and the result is passed along to the device of this engine as the new heading. Samples which are tagged with
+     * a different sensor than the one of this engine are ignored, see {@link #SENSOR}.
+     *
+     * @param data The data is at least two floating-point numbers, representing the X and Y values of the sensor.
      *
      * @throws IllegalArgumentException This exception is thrown if the received data is not properly formatted
-     *                                  as specified in the documentation of the data argument.
+     *                                  as at least two floating-point numbers.
      */
-    public abstract void processData(double[] data);
+    public void processData(double[] data) throws IllegalArgumentException {
+        if (data.length < 2) {
+            throw new IllegalArgumentException("Data should be at least two floating-point numbers.");
+        }
+
+        if (data.length > SENSOR && data[SENSOR] != 0 && data[SENSOR] != _type) {
+            return;
+        }
+
+        _sample.set(data, System.nanoTime());
+
+        if (_pipeline.process(_sample)) {
+            setHeading(_sample.x, _sample.y);
+        }
+    }
 
     /**
      * Recalibrates the sensor's starting position, meaning that the current position will be considered as
      * 0,0 and further sensor measurements will translate to mouse-movements relative to the current position.
+     * The zero point is taken from the next sample, and the filter forgets the previous samples.
      */
-    public abstract void recalibrate();
+    public void recalibrate() {
+        _pipeline.reset();
+    }
+
+    /**
+     * Passes the processed heading along to the device of this engine, or to the {@see MouseHandler}, if there is none.
+     *
+     * @param x The X value of the coordinate to start navigating to.
+     * @param y The Y value of the coordinate to start navigating to.
+     */
+    protected void setHeading(double x, double y) {
+        if (_device != null) {
+            _device.setHeading(x, y);
+        } else {
+            MouseHandler.setHeading(x, y);
+        }
+    }
+
+    /**
+     * Gets the name of the specified sensor type, which is used in the names of its system properties.
+     *
+     * @param type {@link #ACCELEROMETER}, {@link #GYROSCOPE} or {@link #FUSION}.
+     *
+     * @return "accelerometer", "gyroscope" or "fusion".
+     */
+    public static String getTypeName(int type) {
+        switch (type) {
+            case GYROSCOPE:
+                return "gyroscope";
+
+            case FUSION:
+                return "fusion";
+
+            default:
+                return "accelerometer";
+        }
+    }
 
     /**
      * Initiates a new instance of the requested sensor data preprocessor and returns it for use.
@@ -44,6 +203,7 @@ public abstract class DataProcessorEngine {
      *
      * @see this.ACCELEROMETER
      * @see this.GYROSCOPE
+     * @see this.FUSION
      *
      * @return A new instance of the requested sensor data preprocessor.
      *
@@ -57,6 +217,9 @@ public abstract class DataProcessorEngine {
             case GYROSCOPE:
                 return new GyroscopeEngine();
 
+            case FUSION:
+                return new FusionEngine();
+
             default:
                 throw new IllegalArgumentException("Unknown sensor type. Consult the documentation for valid values.");
         }
@@ -0,0 +1,295 @@
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides asynchronous diagnostic logging for the hot paths of the servers.
+ *
+ * Logging every received packet synchronously would make the network threads block on the log handlers at the
+ * rate of the sensors. Instead, each category of events is sampled (only one in every N events is logged, and
+ * none if N is zero), and the sampled events are stored as raw arguments in a bounded ring buffer. A background
+ * thread drains the buffer, formats the messages and passes them to {@see Logger}. When the buffer is full,
+ * events are dropped instead of blocking the caller.
+ *
+ * Callers should check {@link #sample()} before calling any of the log methods, so that disabled categories
+ * cost a single field read. The sampling rate of a category can be set with the "airmouse.log.{name}" system
+ * property, or with {@link #setSampling(int)} at runtime.
+ *
+ * @author RoliSoft
+ */
+public class DiagnosticLog {
+
+    /**
+     * The number of events the ring buffer can hold, must be a power of two.
+     */
+    private static final int CAPACITY = 1024;
+
+    /**
+     * The number of bytes stored for binary arguments, the rest is truncated.
+     */
+    private static final int MAX_BYTES = 128;
+
+    /**
+     * The time to wait between draining the ring buffer when it is empty.
+     */
+    private static final long DRAIN_INTERVAL = 10_000_000L;
+
+    private static final Slot[] _ring = new Slot[CAPACITY];
+    private static final AtomicLong _tail = new AtomicLong();
+    private static final AtomicLong _dropped = new AtomicLong();
+    private static long _head;
+    private static Thread _drainer;
+
+    private final String _name;
+    private final Logger _logger;
+    private volatile int _sampling;
+    private final AtomicLong _counter = new AtomicLong();
+
+    /**
+     * Represents an event in the ring buffer. The arguments are stored as received, and only formatted when drained.
+     */
+    private static class Slot {
+
+        volatile long sequence;
+        DiagnosticLog log;
+        String format;
+        Object arg;
+        long value;
+        final byte[] bytes = new byte[MAX_BYTES];
+        int length = -1;
+
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            _ring[i] = new Slot();
+            _ring[i].sequence = i;
+        }
+    }
+
+    /**
+     * Packets received on the TCP connection.
+     */
+    public static final DiagnosticLog PACKETS = new DiagnosticLog("packets");
+
+    /**
+     * Datagrams received on the UDP servers.
+     */
+    public static final DiagnosticLog DATAGRAMS = new DiagnosticLog("datagrams");
+
+    /**
+     * Initializes a new category.
+     *
+     * @param name The name of the category.
+     */
+    private DiagnosticLog(String name) {
+        _name = name;
+        _logger = Logger.getLogger(DiagnosticLog.class.getName() + "." + name);
+
+        setSampling(Integer.getInteger("airmouse.log." + name, 0));
+    }
+
+    /**
+     * Gets the name of the category.
+     *
+     * @return Name of the category.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Gets the sampling rate of this category.
+     *
+     * @return One in how many events are logged, or zero if the category is disabled.
+     */
+    public int getSampling() {
+        return _sampling;
+    }
+
+    /**
+     * Sets the sampling rate of this category.
+     *
+     * @param sampling One in how many events should be logged, or zero to disable the category.
+     */
+    public void setSampling(int sampling) {
+        _sampling = Math.max(0, sampling);
+
+        if (_sampling != 0) {
+            startDrainer();
+        }
+    }
+
+    /**
+     * Gets the number of events which were dropped since startup, due to the ring buffer being full.
+     *
+     * @return Number of dropped events.
+     */
+    public static long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * Decides whether the current event should be logged, based on the sampling rate of this category.
+     * A category may be shared by more threads, therefore the events are counted atomically, so that exactly
+     * one in every N of them is logged across all of them.
+     *
+     * @return Value indicating whether to call one of the log methods.
+     */
+    public boolean sample() {
+        int sampling = _sampling;
+        if (sampling == 0) {
+            return false;
+        }
+
+        return _counter.incrementAndGet() % sampling == 0;
+    }
+
+    /**
+     * Queues an event with a single object argument.
+     *
+     * @param format The message format, as accepted by {@see MessageFormat}.
+     * @param arg    The argument, which should not be modified after the call.
+     */
+    public void log(String format, Object arg) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+
+        slot.format = format;
+        slot.arg = arg;
+        slot.length = -1;
+        publish(slot);
+    }
+
+    /**
+     * Queues an event with a single numeric argument.
+     *
+     * @param format The message format, as accepted by {@see MessageFormat}.
+     * @param value  The argument.
+     */
+    public void log(String format, long value) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+
+        slot.format = format;
+        slot.arg = null;
+        slot.value = value;
+        slot.length = -1;
+        publish(slot);
+    }
+
+    /**
+     * Queues an event with a binary argument, which will be formatted as ISO-8859-1 text.
+     * The bytes are copied, therefore the buffer may be reused after the call.
+     *
+     * @param format The message format, as accepted by {@see MessageFormat}.
+     * @param b      The buffer holding the argument.
+     * @param off    The index of the first byte.
+     * @param len    The number of bytes.
+     */
+    public void log(String format, byte[] b, int off, int len) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+
+        slot.format = format;
+        slot.arg = null;
+        slot.length = Math.min(len, MAX_BYTES);
+        System.arraycopy(b, off, slot.bytes, 0, slot.length);
+        publish(slot);
+    }
+
+    /**
+     * Claims the next free slot in the ring buffer for this category.
+     *
+     * @return The claimed slot, or null if the ring buffer is full.
+     */
+    private Slot claim() {
+        while (true) {
+            long pos = _tail.get();
+            Slot slot = _ring[(int)(pos & (CAPACITY - 1))];
+            long diff = slot.sequence - pos;
+
+            if (diff < 0) {
+                _dropped.incrementAndGet();
+                return null;
+            }
+
+            if (diff == 0 && _tail.compareAndSet(pos, pos + 1)) {
+                slot.log = this;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Hands a filled slot over to the background thread.
+     *
+     * @param slot The claimed slot.
+     */
+    private static void publish(Slot slot) {
+        slot.sequence = slot.sequence + 1;
+    }
+
+    /**
+     * Starts the background thread which drains the ring buffer, if it is not running already.
+     */
+    private static synchronized void startDrainer() {
+        if (_drainer != null) {
+            return;
+        }
+
+        _drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (!drain()) {
+                        LockSupport.parkNanos(DRAIN_INTERVAL);
+                    }
+                }
+            }
+        }, "DiagnosticLog");
+
+        _drainer.setDaemon(true);
+        _drainer.start();
+    }
+
+    /**
+     * Formats and logs the published events in the ring buffer. Only called by the background thread.
+     *
+     * @return Value indicating whether any events were drained.
+     */
+    private static boolean drain() {
+        boolean any = false;
+
+        while (true) {
+            Slot slot = _ring[(int)(_head & (CAPACITY - 1))];
+
+            if (slot.sequence != _head + 1) {
+                return any;
+            }
+
+            Object arg = slot.length != -1 ? new String(slot.bytes, 0, slot.length, StandardCharsets.ISO_8859_1)
+                       : slot.arg != null ? slot.arg
+                       : (Object)slot.value;
+
+            slot.log._logger.log(Level.INFO, MessageFormat.format(slot.format, arg));
+
+            slot.log = null;
+            slot.arg = null;
+            slot.sequence = _head + CAPACITY;
+
+            _head++;
+            any = true;
+        }
+    }
+
+}
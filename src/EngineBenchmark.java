@@ -0,0 +1,110 @@
+/**
+ * Measures the cost of processing a sample by each of the engines, which can be run with "java EngineBenchmark" to
+ * compare them, or to check a change to the pipeline. The samples are generated ahead, and the headings are summed
+ * instead of being passed to the {@see MouseHandler}, so only the engine and its pipeline are measured, and no mouse
+ * is needed. Each engine is run for a number of rounds after a warmup, and the fastest round is reported, since the
+ * slower ones only add the noise of the machine.
+ *
+ * The number of samples in a round can be passed as the first argument, ten million unless set otherwise.
+ *
+ * @author RoliSoft
+ */
+public class EngineBenchmark {
+
+    /**
+     * The number of generated samples, which are processed over and over.
+     */
+    private static final int SAMPLES = 1024;
+
+    /**
+     * The number of rounds each engine is run for, of which the first one is the warmup.
+     */
+    private static final int ROUNDS = 6;
+
+    private static double _sink;
+
+    /**
+     * Runs the benchmark of each engine, and prints the cost of a sample.
+     *
+     * @param args The number of samples in a round, optionally.
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        run(new GyroscopeEngine() {
+            @Override
+            protected void setHeading(double x, double y) {
+                _sink += x + y;
+            }
+        }, generate(DataProcessorEngine.GYROSCOPE), count);
+
+        run(new AccelerometerEngine() {
+            @Override
+            protected void setHeading(double x, double y) {
+                _sink += x + y;
+            }
+        }, generate(DataProcessorEngine.ACCELEROMETER), count);
+
+        run(new FusionEngine() {
+            @Override
+            protected void setHeading(double x, double y) {
+                _sink += x + y;
+            }
+        }, generate(DataProcessorEngine.FUSION), count);
+
+        System.out.println("(sum of the headings: " + _sink + ")");
+    }
+
+    /**
+     * Runs the benchmark of an engine, and prints the cost of a sample in its fastest round.
+     *
+     * @param engine  The engine to measure.
+     * @param samples The samples to process over and over.
+     * @param count   The number of samples in a round.
+     */
+    private static void run(DataProcessorEngine engine, double[][] samples, int count) {
+        long best = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+
+            for (int i = 0; i < count; i++) {
+                engine.processData(samples[i & SAMPLES - 1]);
+            }
+
+            long time = System.nanoTime() - start;
+
+            if (round > 0 && time < best) {
+                best = time;
+            }
+        }
+
+        System.out.printf("%-15s %8.1f ns/sample%n", engine, (double)best / count);
+    }
+
+    /**
+     * Generates samples of a hand moving the device slowly around, large enough to pass the deadzone.
+     * For the fusion, the samples of the gyroscope and the accelerometer are interleaved.
+     *
+     * @param type The sensor type of the engine.
+     *
+     * @return The tagged samples.
+     */
+    private static double[][] generate(int type) {
+        double[][] samples = new double[SAMPLES][];
+
+        for (int i = 0; i < SAMPLES; i++) {
+            double phase = 2 * Math.PI * i / SAMPLES;
+            int sensor = type == DataProcessorEngine.FUSION ? (i % 2 == 0 ? DataProcessorEngine.GYROSCOPE : DataProcessorEngine.ACCELEROMETER) : type;
+
+            if (sensor == DataProcessorEngine.GYROSCOPE) {
+                samples[i] = new double[] { 2 * Math.sin(phase), 2 * Math.cos(phase), 0, sensor };
+            } else {
+                samples[i] = new double[] { 4 * Math.sin(phase), 4 * Math.cos(phase), 8, sensor };
+            }
+        }
+
+        return samples;
+    }
+
+}
@@ -0,0 +1,177 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides a data processor which fuses the accelerometer and the gyroscope with a complementary filter.
+ *
+ * The gyroscope follows quick movements without delay, but integrating its rates accumulates a drift, while the
+ * accelerometer measures the tilt against gravity without drift, but the movement of the hand shakes it. The two
+ * are combined by integrating the gyroscope into the orientation, and pulling the orientation towards the tilt
+ * measured by the accelerometer with a time constant, see {@link #getTimeConstant()}: changes faster than the time
+ * constant come from the gyroscope, slower ones from the accelerometer.
+ *
+ * The client sends the samples of both sensors interleaved, each tagged with its sensor, see
+ * {@link DataProcessorEngine#SENSOR}; untagged samples are ignored, since their sensor cannot be told. The gyroscope
+ * is expected in radians per second, and the accelerometer in meters per second squared. The orientation is passed
+ * through the pipeline as the acceleration which gravity would cause at that tilt, so the pipeline can be configured
+ * just as the one of the accelerometer. The time constant can be set with the "airmouse.fusion.tau" system property,
+ * in seconds.
+ *
+ * @author RoliSoft
+ */
+public class FusionEngine extends DataProcessorEngine {
+
+    /**
+     * The standard gravity, by which the orientation is converted back to acceleration.
+     */
+    private static final double GRAVITY = 9.80665;
+
+    private final SensorSample _fused = new SensorSample();
+    private volatile double _tau;
+    private double _angleX;
+    private double _angleY;
+    private long _gyroTime;
+    private long _accelTime;
+    private boolean _aligned;
+
+    /**
+     * Initializes the current instance, with the pipeline configured for the fusion of the sensors.
+     */
+    public FusionEngine() {
+        super(FUSION);
+
+        _tau = 0.5;
+
+        String spec = System.getProperty("airmouse.fusion.tau");
+
+        if (spec != null) {
+            try {
+                setTimeConstant(Double.parseDouble(spec.trim()));
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid fusion time constant: " + spec, ex);
+            }
+        }
+    }
+
+    /**
+     * Gets the time constant of the complementary filter: the orientation follows the accelerometer for changes
+     * slower than this, and the gyroscope for faster ones.
+     *
+     * @return Time constant in seconds.
+     */
+    public double getTimeConstant() {
+        return _tau;
+    }
+
+    /**
+     * Sets the time constant of the complementary filter. A longer one trusts the gyroscope more, which is steadier,
+     * and a shorter one corrects the drift faster.
+     *
+     * @param tau Time constant in seconds.
+     */
+    public void setTimeConstant(double tau) {
+        if (!(tau > 0)) {
+            throw new IllegalArgumentException("The time constant has to be positive.");
+        }
+
+        _tau = tau;
+    }
+
+    /**
+     * Processes a tagged sample of either sensor. A gyroscope sample advances the orientation by its rates, and an
+     * accelerometer sample pulls the orientation towards its tilt. Once the orientation has been aligned with the
+     * accelerometer, it is passed through the pipeline, and the result is passed along as the new heading.
+     *
+     * @param data The X, Y and Z values of the sensor, followed by the sensor tag.
+     *
+     * @throws IllegalArgumentException This exception is thrown if the received data is not properly formatted
+     *                                  as three floating-point numbers.
+     */
+    @Override
+    public void processData(double[] data) throws IllegalArgumentException {
+        if (data.length < 3) {
+            throw new IllegalArgumentException("Data should be at least three floating-point numbers.");
+        }
+
+        int sensor = data.length > SENSOR ? (int)data[SENSOR] : 0;
+        long now = System.nanoTime();
+
+        if (sensor == GYROSCOPE) {
+            if (_gyroTime != 0) {
+                double dt = SensorFilter.clamp((now - _gyroTime) / 1e9);
+
+                _angleX = wrap(_angleX + data[0] * dt);
+                _angleY += data[1] * dt;
+            }
+
+            _gyroTime = now;
+        } else if (sensor == ACCELEROMETER) {
+            double tiltX = Math.atan2(data[1], data[2]);
+            double tiltY = Math.atan2(-data[0], Math.sqrt(data[1] * data[1] + data[2] * data[2]));
+
+            if (_aligned) {
+                double dt = SensorFilter.clamp((now - _accelTime) / 1e9);
+                double gain = dt / (_tau + dt);
+
+                _angleX += wrap(tiltX - _angleX) * gain;
+                _angleY += (tiltY - _angleY) * gain;
+            } else {
+                _angleX = tiltX;
+                _angleY = tiltY;
+                _aligned = true;
+            }
+
+            _accelTime = now;
+        } else {
+            return;
+        }
+
+        if (!_aligned) {
+            return;
+        }
+
+        _fused.x = -GRAVITY * Math.sin(_angleY);
+        _fused.y = GRAVITY * Math.sin(_angleX);
+        _fused.z = 0;
+        _fused.time = now;
+
+        if (getPipeline().process(_fused)) {
+            setHeading(_fused.x, _fused.y);
+        }
+    }
+
+    /**
+     * Recalibrates the sensor's starting position, and realigns the orientation with the next accelerometer sample,
+     * dropping any drift which the filter has not corrected yet.
+     */
+    @Override
+    public void recalibrate() {
+        super.recalibrate();
+
+        _aligned = false;
+        _gyroTime = 0;
+    }
+
+    /**
+     * Returns the textual representation of the current instance.
+     *
+     * @return Name of the sensor.
+     */
+    @Override
+    public String toString() {
+        return "Fusion";
+    }
+
+    /**
+     * Wraps an angle into the range between -pi and pi, so that the orientation is pulled towards the tilt the short
+     * way around, when the roll crosses upside down.
+     *
+     * @param angle The angle in radians.
+     *
+     * @return The same angle between -pi and pi.
+     */
+    private static double wrap(double angle) {
+        return angle > Math.PI ? angle - 2 * Math.PI : angle < -Math.PI ? angle + 2 * Math.PI : angle;
+    }
+
+}
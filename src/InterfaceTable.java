@@ -0,0 +1,303 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a table of the local IPv4 addresses and their subnets, in order to tell each device which local address
+ * it can connect back to.
+ *
+ * Enumerating the network interfaces is slow, and gets slower with every interface the machine has, therefore the
+ * table is built once, and refreshed on a background thread every {@link #REFRESH_INTERVAL}. The entries are only
+ * replaced when an interface has actually changed, so that the callers can cache whatever they derive from them.
+ *
+ * On a multi-homed host, the first site-local address is often not reachable from the device, therefore the
+ * address on the same subnet as the device is selected, falling back to the preferred address of the machine.
+ *
+ * @author RoliSoft
+ */
+public class InterfaceTable implements Runnable {
+
+    /**
+     * The number of milliseconds to wait between looking for changes of the network interfaces.
+     */
+    public static final int REFRESH_INTERVAL = 5000;
+
+    /**
+     * Represents a local IPv4 address and its subnet.
+     */
+    public static class Entry {
+
+        private final int _address;
+        private final int _mask;
+        private final String _hostAddress;
+        private final boolean _preferred;
+        private final NetworkInterface _interface;
+
+        /**
+         * Initializes the current instance.
+         *
+         * @param address   The IPv4 address as a 32-bit integer.
+         * @param prefix    The length of the network prefix.
+         * @param host      The textual representation of the address.
+         * @param preferred Value indicating whether the address may be given to devices on other subnets.
+         * @param netint    The network interface of the address, or null if it is unknown.
+         */
+        private Entry(int address, int prefix, String host, boolean preferred, NetworkInterface netint) {
+            _address     = address;
+            _mask        = prefix <= 0 ? 0 : prefix >= 32 ? -1 : -1 << (32 - prefix);
+            _hostAddress = host;
+            _preferred   = preferred;
+            _interface   = netint;
+        }
+
+        /**
+         * Gets the textual representation of the address.
+         *
+         * @return Local IP address.
+         */
+        public String getHostAddress() {
+            return _hostAddress;
+        }
+
+        /**
+         * Gets a value indicating whether the address may be given to devices on other subnets.
+         *
+         * @return Value indicating whether the address is preferred.
+         */
+        public boolean isPreferred() {
+            return _preferred;
+        }
+
+        /**
+         * Gets the network interface of the address.
+         *
+         * @return Network interface, or null if it is unknown.
+         */
+        public NetworkInterface getInterface() {
+            return _interface;
+        }
+
+        /**
+         * Decides whether the specified address is on the subnet of this entry.
+         *
+         * @param address The IPv4 address as a 32-bit integer.
+         *
+         * @return Value indicating whether the address is on the same subnet.
+         */
+        public boolean contains(int address) {
+            return (address & _mask) == (_address & _mask);
+        }
+
+        /**
+         * Decides whether the specified object is an entry of the same address and subnet.
+         *
+         * @param obj The object to compare to.
+         *
+         * @return Value indicating whether the entries are equal.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+
+            Entry other = (Entry)obj;
+            return _address == other._address && _mask == other._mask && _preferred == other._preferred && _hostAddress.equals(other._hostAddress)
+                && (_interface == null ? other._interface == null : other._interface != null && _interface.getName().equals(other._interface.getName()));
+        }
+
+        /**
+         * Gets the hash code of the current instance.
+         *
+         * @return Hash code of the address.
+         */
+        @Override
+        public int hashCode() {
+            return _address;
+        }
+
+    }
+
+    private volatile Entry[] _entries;
+    private volatile Entry _fallback;
+    private Thread _thread;
+
+    /**
+     * Initializes the current instance, and builds the table.
+     */
+    public InterfaceTable() {
+        _entries = new Entry[0];
+        refresh();
+    }
+
+    /**
+     * Gets the current entries of the table. The returned array is replaced, but never modified,
+     * when the network interfaces change, therefore it may be compared by reference.
+     *
+     * @return Array of entries.
+     */
+    public Entry[] getEntries() {
+        return _entries;
+    }
+
+    /**
+     * Gets the preferred address of the machine, which is given to devices on unknown subnets.
+     *
+     * @return The preferred entry.
+     */
+    public Entry getPreferred() {
+        return _fallback;
+    }
+
+    /**
+     * Selects the local address which the specified device can connect back to: the address on the same subnet,
+     * preferring the longest prefix, or the preferred address of the machine, if none of the subnets match.
+     *
+     * @param remote The address of the device.
+     *
+     * @return The selected entry.
+     */
+    public Entry select(InetAddress remote) {
+        Entry[] entries = _entries;
+        Entry best = null;
+
+        if (remote instanceof Inet4Address) {
+            int address = toInt(remote.getAddress());
+
+            for (Entry entry : entries) {
+                if (entry.contains(address) && (best == null || Integer.compareUnsigned(entry._mask, best._mask) > 0)) {
+                    best = entry;
+                }
+            }
+        }
+
+        return best != null ? best : _fallback;
+    }
+
+    /**
+     * Starts refreshing the table in the background, if it is not being refreshed already.
+     *
+     * @param serverManager The manager instance, which creates the thread according to the execution mode.
+     */
+    public void start(ServerManager serverManager) {
+        if (_thread != null) {
+            return;
+        }
+
+        _thread = serverManager.newThread("AirMouse interface table", this);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Stops refreshing the table in the background, and waits for the thread to finish.
+     */
+    public void stop() {
+        ServerManager.stopThread(_thread);
+        _thread = null;
+    }
+
+    /**
+     * Runs in a separate thread until interrupted, where it looks for changes of the network interfaces.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(REFRESH_INTERVAL);
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            if (refresh()) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Network interfaces have changed, preferred address is {0}", _fallback.getHostAddress());
+            }
+        }
+    }
+
+    /**
+     * Enumerates the network interfaces, and replaces the entries if any of them have changed.
+     * Interfaces which are down are skipped. Loopback and virtual interfaces are kept for matching the
+     * devices on their subnets, but their addresses are not preferred, just like any non-site-local address.
+     *
+     * @return Value indicating whether the entries have changed.
+     */
+    public synchronized boolean refresh() {
+        ArrayList<Entry> entries = new ArrayList<>();
+
+        try {
+            for (NetworkInterface netint : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!netint.isUp()) {
+                    continue;
+                }
+
+                boolean preferred = !netint.isLoopback() && !netint.isVirtual() && !netint.getDisplayName().contains("VMware");
+
+                for (InterfaceAddress iaddr : netint.getInterfaceAddresses()) {
+                    InetAddress address = iaddr.getAddress();
+
+                    if (!(address instanceof Inet4Address)) {
+                        continue;
+                    }
+
+                    entries.add(new Entry(toInt(address.getAddress()), iaddr.getNetworkPrefixLength(), address.getHostAddress(), preferred && address.isSiteLocalAddress(), netint));
+                }
+            }
+        } catch (SocketException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+
+        Entry[] table = entries.toArray(new Entry[0]);
+
+        if (Arrays.equals(table, _entries) && _fallback != null) {
+            return false;
+        }
+
+        Entry fallback = null;
+
+        for (Entry entry : table) {
+            if (entry._preferred) {
+                fallback = entry;
+                break;
+            }
+        }
+
+        if (fallback == null) {
+            try {
+                InetAddress local = InetAddress.getLocalHost();
+                fallback = new Entry(0, 0, local.getHostAddress(), true, null);
+            } catch (UnknownHostException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                fallback = new Entry(0, 0, "", true, null);
+            }
+        }
+
+        _fallback = fallback;
+        _entries = table;
+
+        return true;
+    }
+
+    /**
+     * Converts an IPv4 address to a 32-bit integer.
+     *
+     * @param address The four bytes of the address.
+     *
+     * @return The address as an integer.
+     */
+    private static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+    }
+
+}
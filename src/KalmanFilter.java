@@ -0,0 +1,149 @@
+/**
+ * Provides a Kalman filter, which models each axis as a value moving at a constant velocity, disturbed by random
+ * accelerations, and measured with noise. Unlike a plain low-pass filter, it follows a steady movement without
+ * falling behind, and only smooths the changes the model does not expect, such as tremor.
+ *
+ * The ratio of the process noise to the measurement noise decides the balance between smoothing and lag. The lag is
+ * reported as the time constant of a first-order filter with the same gain, dt * (1 - K) / K, where K is the current
+ * gain of the value, on the slower axis.
+ *
+ * @author RoliSoft
+ */
+public class KalmanFilter extends SensorFilter {
+
+    /**
+     * The default variance of the accelerations, per second to the fourth.
+     */
+    public static final double DEFAULT_PROCESS_NOISE = 50;
+
+    /**
+     * The default variance of the measurements.
+     */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 0.1;
+
+    private final double _q;
+    private final double _r;
+
+    private final double[] _x = new double[AXES];
+    private final double[] _v = new double[AXES];
+    private final double[] _p00 = new double[AXES];
+    private final double[] _p01 = new double[AXES];
+    private final double[] _p11 = new double[AXES];
+    private double _gain;
+    private double _dt;
+    private boolean _initialized;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param processNoise     The variance of the accelerations, higher values follow changes faster.
+     * @param measurementNoise The variance of the measurements, higher values smooth more.
+     */
+    public KalmanFilter(double processNoise, double measurementNoise) {
+        if (processNoise <= 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("The noise variances have to be positive.");
+        }
+
+        _q = processNoise;
+        _r = measurementNoise;
+
+        reset();
+    }
+
+    /**
+     * Filters the values of the axes in place.
+     *
+     * @param values The values of the axes, which are replaced by the filtered ones.
+     * @param dt     The number of seconds since the previous sample.
+     */
+    @Override
+    public void filter(double[] values, double dt) {
+        if (!_initialized) {
+            for (int i = 0; i < AXES; i++) {
+                _x[i] = values[i];
+                _v[i] = 0;
+                _p00[i] = _r;
+                _p01[i] = 0;
+                _p11[i] = _r;
+            }
+
+            _initialized = true;
+            return;
+        }
+
+        dt = clamp(dt);
+
+        double dt2 = dt * dt;
+        double q00 = _q * dt2 * dt2 / 4;
+        double q01 = _q * dt2 * dt / 2;
+        double q11 = _q * dt2;
+        double gain = 1;
+
+        for (int i = 0; i < AXES; i++) {
+            // Predict: the value moves with its velocity, and the uncertainty grows.
+            double x = _x[i] + _v[i] * dt;
+            double p00 = _p00[i] + 2 * dt * _p01[i] + dt2 * _p11[i] + q00;
+            double p01 = _p01[i] + dt * _p11[i] + q01;
+            double p11 = _p11[i] + q11;
+
+            // Update: correct the prediction with the measurement, in proportion to the uncertainties.
+            double s = p00 + _r;
+            double k0 = p00 / s;
+            double k1 = p01 / s;
+            double residual = values[i] - x;
+
+            _x[i] = x + k0 * residual;
+            _v[i] += k1 * residual;
+            _p00[i] = (1 - k0) * p00;
+            _p01[i] = (1 - k0) * p01;
+            _p11[i] = p11 - k1 * p01;
+
+            gain = Math.min(gain, k0);
+            values[i] = _x[i];
+        }
+
+        _gain = gain;
+        _dt = dt;
+    }
+
+    /**
+     * Forgets the previous samples, so that the next sample is passed through as it is.
+     */
+    @Override
+    public void reset() {
+        _initialized = false;
+        _gain = 1;
+        _dt = 0;
+    }
+
+    /**
+     * Gets the lag which the filter currently adds to the movements, based on the gain of the slower axis.
+     *
+     * @return Lag in milliseconds.
+     */
+    @Override
+    public double getLag() {
+        return _gain > 0 ? 1000 * _dt * (1 - _gain) / _gain : 0;
+    }
+
+    /**
+     * Gets the type of the filter.
+     *
+     * @return {@link #KALMAN}.
+     */
+    @Override
+    public int getType() {
+        return KALMAN;
+    }
+
+    /**
+     * Returns the specification of the current instance, which {@link #parse} accepts.
+     *
+     * @return Specification of the filter.
+     */
+    @Override
+    public String toString() {
+        return "kalman:" + _q + "," + _r;
+    }
+
+}
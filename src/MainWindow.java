@@ -10,6 +10,7 @@ import java.net.SocketException;
 import java.text.DecimalFormat;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,9 +40,9 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
     private JProgressBar jYProgressBar;
 
     private ServerManager _serverManager;
-    private InetAddress _clientAddr;
-    private String _clientName;
-    private DataProcessorEngine _engine;
+    private volatile double _headingX;
+    private volatile double _headingY;
+    private final AtomicBoolean _headingPending = new AtomicBoolean();
 
     /**
      * Initializes the current instance and sets up the user interface.
@@ -250,6 +251,7 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
 
     /**
      * Occurs when a new client has connected to the local endpoint.
+     * The labels are updated asynchronously on the event dispatch thread, as this is called by a network thread.
      *
      * @param addr The IP address of the connecting client.
      * @param name The name of the connecting device's name.
@@ -260,113 +262,96 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
      */
     @Override
     public void clientConnected(InetAddress addr, String name, int type) {
-        if (name.length() == 0) {
-            name = addr.getHostName();
-        }
-
-        _clientAddr = addr;
-        _clientName = name.replace('_', ' ');
-
-        try {
-            _engine = DataProcessorEngine.createFromType(type);
-        } catch (IllegalArgumentException ex) {
-            _engine = null;
-            Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        jStatusLabel.setText("Client connected!");
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                jStatusLabel.setText("Client connected!");
 
-        setConnectionLabels();
+                setConnectionLabels();
+            }
+        });
     }
 
     /**
      * Occurs when sensor data is received from the remote client.
+     * The data is processed by the engine of the client's session, therefore there is nothing to do here.
      *
      * @param data Sensor data to be processed.
      */
     public void sensorDataReceived(double[] data) {
-        if (_engine == null) {
-            return;
-        }
-
-        _engine.processData(data);
     }
 
     /**
      * Occurs when the remote device has changed the sensor type.
+     * The labels are updated asynchronously on the event dispatch thread.
      *
      * @param type Sensor ID to continue processing the data.
      */
     public void sensorChangeReceived(int type) {
-        try {
-            _engine = DataProcessorEngine.createFromType(type);
-        } catch (IllegalArgumentException ex) {
-            _engine = null;
-            Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        setConnectionLabels();
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                setConnectionLabels();
+            }
+        });
     }
 
     /**
      * Occurs when the remote device has requested a sensor recalibration.
+     * The engine of the client's session is recalibrated, therefore there is nothing to do here.
      */
     public void sensorRecalibrateRequest() {
-        if (_engine == null) {
-            return;
-        }
-
-        _engine.recalibrate();
     }
 
     /**
      * Occurs when a click was requested from the remote device.
+     * The click is performed by the client's session, therefore there is nothing to do here.
      *
      * @param release Value indicating whether this is a new click or not.
      *                If set to false, this is a new click and 'pressed' event will be sent.
      *                If set to true, this is a click finish and 'released' event will be sent.
      */
     public void clickRequested(boolean release) {
-        if (_engine == null) {
-            return;
-        }
-
-        if (release) {
-            MouseHandler.release();
-        } else {
-            MouseHandler.press();
-        }
     }
 
     /**
      * Occurs when a the connection has been lost due to a connection error.
+     * The error is shown asynchronously, as the network thread serves other clients as well.
      *
      * @param data This argument may contain null, Exception or String in order to explain the cause.
      */
     @Override
-    public void connectionError(Object data) {
-        JOptionPane.showMessageDialog(this, "Client connection error:\r\n" + (data instanceof Exception ? ((Exception) data).getMessage() : (String) data), "AirMouse Network Error", JOptionPane.ERROR_MESSAGE);
+    public void connectionError(final Object data) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(MainWindow.this, "Client connection error:\r\n" + (data instanceof Exception ? ((Exception) data).getMessage() : (String) data), "AirMouse Network Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
 
     /**
      * Occurs when the client has gracefully disconnected from the server.
+     * The labels are updated asynchronously on the event dispatch thread.
      */
     @Override
     public void clientDisconnected() {
-        _clientAddr = null;
-        _engine = null;
-
-        if (MouseHandler.isRunning()) {
+        if (MouseHandler.isRunning() && (_serverManager == null || !_serverManager.isConnected())) {
             MouseHandler.stop();
         }
 
-        if (_serverManager == null || !_serverManager.isListening()) {
-            jStatusLabel.setText("Server is not running.");
-        } else {
-            jStatusLabel.setText("Server is running.");
-        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (_serverManager == null || !_serverManager.isListening()) {
+                    jStatusLabel.setText("Server is not running.");
+                } else {
+                    jStatusLabel.setText("Server is running.");
+                }
 
-        setConnectionLabels();
+                setConnectionLabels();
+            }
+        });
     }
 
     /**
@@ -389,15 +374,29 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
             jToggleServerButton.setText("Stop server");
         }
 
-        // Update the client status label.
+        // Update the client status label with the most recently connected client.
+
+        Session session = null;
+        int clients = 0;
+
+        if (_serverManager != null) {
+            for (Session s : _serverManager.getSessions()) {
+                if (s.isHandshaken() && !s.isClosed()) {
+                    session = s;
+                    clients++;
+                }
+            }
+        }
 
-        if (_clientAddr == null) {
+        if (session == null) {
             jClientLabel.setText("N/A");
             jClientLabel.setForeground(UIManager.getDefaults().getColor("Button.disabledForeground"));
 
             jDisconnectButton.setEnabled(false);
         } else {
-            jClientLabel.setText(_clientName + " [" + _clientAddr.getHostAddress() + "]");
+            String name = session.getName().length() != 0 ? session.getName().replace('_', ' ') : session.getAddress().getHostAddress();
+
+            jClientLabel.setText(name + " [" + session.getAddress().getHostAddress() + "]" + (clients > 1 ? " (+" + (clients - 1) + ")" : ""));
             jClientLabel.setForeground(UIManager.getDefaults().getColor("Button.foreground"));
 
             jDisconnectButton.setEnabled(true);
@@ -405,17 +404,19 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
 
         // Update the selected sensor label.
 
-        if (_engine == null) {
+        DataProcessorEngine engine = session != null ? session.getEngine() : null;
+
+        if (engine == null) {
             jTypeLabel.setText("N/A");
             jTypeLabel.setForeground(UIManager.getDefaults().getColor("Button.disabledForeground"));
         } else {
-            jTypeLabel.setText(_engine.toString());
+            jTypeLabel.setText(engine.toString());
             jTypeLabel.setForeground(UIManager.getDefaults().getColor("Button.foreground"));
         }
 
         // Update the progress bars.
 
-        setHeading(0, 0);
+        showHeading(0, 0);
     }
 
     /**
@@ -478,12 +479,35 @@ public class MainWindow extends JFrame implements ActionListener, WindowListener
 
     /**
      * Sets a new heading based on the translated sensor data.
+     * The progress bars are updated on the event dispatch thread, with the newest heading only,
+     * since the headings arrive much faster than they can be shown.
      *
      * @param x The value of the X axis.
      * @param y The value of the Y axis.
      */
     @Override
     public void setHeading(double x, double y) {
+        _headingX = x;
+        _headingY = y;
+
+        if (_headingPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    _headingPending.set(false);
+                    showHeading(_headingX, _headingY);
+                }
+            });
+        }
+    }
+
+    /**
+     * Shows the specified heading on the progress bars. Only called on the event dispatch thread.
+     *
+     * @param x The value of the X axis.
+     * @param y The value of the Y axis.
+     */
+    private void showHeading(double x, double y) {
         x = Math.abs(x);
         y = Math.abs(y);
 
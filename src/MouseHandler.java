@@ -20,13 +20,16 @@ public class MouseHandler {
     private static Robot _robot;
     private static PointerInfo _mouse;
     private static Dimension _screen;
-    private static MouseMoverThread _thd;
+    private static volatile MouseMoverThread _thd;
+    private static PointerArbiter _arbiter;
     private static ArrayList<HeadingListener> _listeners;
 
     /**
      * Initializes the static values for private use of this class.
      */
     static {
+        _arbiter = new PointerArbiter();
+
         try {
             _robot     = new Robot();
             _mouse     = MouseInfo.getPointerInfo();
@@ -37,6 +40,15 @@ public class MouseHandler {
         }
     }
 
+    /**
+     * Gets the arbiter which decides which of the connected devices controls the mouse.
+     *
+     * @return Pointer arbiter instance.
+     */
+    public static PointerArbiter getArbiter() {
+        return _arbiter;
+    }
+
     /**
      * Gets the current position of the cursor.
      * {@see DataProcessorEngine.processData(String)} will calculate a position relative to this.
@@ -113,11 +125,13 @@ public class MouseHandler {
      * @param y The Y value of the coordinate to start navigating to.
      */
     public static void setHeading(double x, double y) {
-        if (!isRunning()) {
-            start();
+        MouseMoverThread thd = _thd;
+
+        if (thd == null || !thd.isAlive()) {
+            thd = ensureRunning();
         }
 
-        _thd.setHeading(x, y);
+        thd.setHeading(x, y);
 
         for (HeadingListener hl : getListeners()) {
             hl.setHeading(x, y);
@@ -145,15 +159,37 @@ public class MouseHandler {
      * Starts a new underlying thread, if one is not running already.
      * The purpose of the underlying thread is to accept values from {@link this.setHeading(double, double)} and
      * animate the movement of the mouse to it. This is being done in order to filter out jerkiness without losing
-     * accuracy.
+     * accuracy. This may be called from several threads at once, only one thread will be started.
      */
     public static void start() {
-        if (isRunning()) {
-            return;
+        ensureRunning();
+    }
+
+    /**
+     * Starts a new underlying thread, if one is not running already, holding the lock of the class,
+     * so that two threads setting the first heading at the same time do not both start one.
+     *
+     * @return The running underlying thread.
+     */
+    private static synchronized MouseMoverThread ensureRunning() {
+        MouseMoverThread thd = _thd;
+
+        if (thd == null || !thd.isAlive()) {
+            thd = new MouseMoverThread();
+            thd.start();
+            _thd = thd;
         }
 
-        _thd = new MouseMoverThread();
-        _thd.start();
+        return thd;
+    }
+
+    /**
+     * Gets the underlying thread, through which the rate of the movements can be set and measured.
+     *
+     * @return The underlying thread, or null if it was not started.
+     */
+    public static MouseMoverThread getMover() {
+        return _thd;
     }
 
     /**
@@ -162,15 +198,19 @@ public class MouseHandler {
      * @return Value indicating whether the underlying thread is alive.
      */
     public static boolean isRunning() {
-        return _thd != null && _thd.isAlive();
+        MouseMoverThread thd = _thd;
+        return thd != null && thd.isAlive();
     }
 
     /**
-     * Stops the underlying thread if such thread exists and is active.
+     * Stops the underlying thread if such thread exists and is active, and waits for it to finish.
+     * The thread is interrupted, which wakes it up if it is parked, and it exits at its next move.
      */
-    public static void stop() {
-        if (isRunning()) {
-            _thd.stop();
+    public static synchronized void stop() {
+        MouseMoverThread thd = _thd;
+
+        if (thd != null && thd.isAlive()) {
+            ServerManager.stopThread(thd);
             _thd = null;
         }
     }
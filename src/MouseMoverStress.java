@@ -0,0 +1,215 @@
+import java.awt.geom.Point2D;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a stress check of the lock-free handoff of the heading to the {@see MouseMoverThread}, which can be run
+ * with "java MouseMoverStress" after any change to it. Three properties are checked:
+ *
+ * - The heading is never torn: two threads keep setting headings with equal X and Y values, while the heading is
+ *   read back, and a read with different X and Y values would be the X of one heading with the Y of another.
+ * - A wakeup is never missed: the heading is set to zero and back repeatedly, with random delays in between, so that
+ *   it is set while the mover is deciding to park, and the mover may never stay parked with a heading to follow.
+ * - The mover exits when interrupted, both while parked and while moving.
+ *
+ * The mover reads the position of the cursor, therefore this has to be run on a desktop, but all the headings stay
+ * well below a pixel, so the cursor is not moved. The process exits with a non-zero status if any check fails.
+ *
+ * @author RoliSoft
+ */
+public class MouseMoverStress {
+
+    /**
+     * The number of headings each writer sets in the tearing check.
+     */
+    private static final int WRITES = 5000000;
+
+    /**
+     * The number of times the mover is sent to park and woken up in the wakeup check.
+     */
+    private static final int ROUNDS = 20000;
+
+    /**
+     * The number of milliseconds the mover may take to wake up, or to exit when interrupted.
+     */
+    private static final int TIMEOUT = 500;
+
+    /**
+     * The heading set in the checks, which is far too small to move the cursor for the duration of the checks.
+     */
+    private static final double HEADING = 1e-8;
+
+    /**
+     * Runs all the checks, and exits with a non-zero status if any of them failed.
+     *
+     * @param args The command line arguments, which are not used.
+     *
+     * @throws InterruptedException This exception is thrown if the main thread is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        boolean passed = checkTearing();
+        passed &= checkWakeups();
+        passed &= checkInterrupt();
+
+        System.out.println(passed ? "All checks passed." : "Some checks failed.");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Checks that a heading which is read back always has the X and Y values of the same heading, while two threads
+     * keep setting it.
+     *
+     * @return Value indicating whether the check passed.
+     *
+     * @throws InterruptedException This exception is thrown if the main thread is interrupted.
+     */
+    private static boolean checkTearing() throws InterruptedException {
+        final MouseMoverThread mover = startMover();
+        Thread[] writers = new Thread[2];
+
+        for (int i = 0; i < writers.length; i++) {
+            final double scale = HEADING * (i + 1);
+
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < WRITES; j++) {
+                        double value = (j % 1000 + 1) * scale;
+                        mover.setHeading(value, value);
+                    }
+                }
+            }, "AirMouse stress writer " + i);
+            writers[i].start();
+        }
+
+        long reads = 0, torn = 0;
+
+        while (writers[0].isAlive() || writers[1].isAlive()) {
+            Point2D.Float heading = mover.getHeading();
+
+            if (heading.x != heading.y) {
+                torn++;
+            }
+
+            reads++;
+        }
+
+        stopMover(mover);
+
+        System.out.println("Tearing: " + torn + " torn headings in " + reads + " reads.");
+        return torn == 0;
+    }
+
+    /**
+     * Checks that the mover always wakes up when a heading is set, while it is parked or about to park.
+     *
+     * @return Value indicating whether the check passed.
+     *
+     * @throws InterruptedException This exception is thrown if the main thread is interrupted.
+     */
+    private static boolean checkWakeups() throws InterruptedException {
+        MouseMoverThread mover = startMover();
+        Random random = new Random();
+        long parked = 0, missed = 0;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            mover.setHeading(0, 0);
+
+            if (random.nextBoolean()) {
+                if (await(mover, true)) {
+                    parked++;
+                }
+            } else {
+                long end = System.nanoTime() + random.nextInt(2000000);
+
+                while (System.nanoTime() - end < 0) {
+                    Thread.onSpinWait();
+                }
+            }
+
+            mover.setHeading(HEADING, HEADING);
+
+            if (!await(mover, false)) {
+                missed++;
+            }
+        }
+
+        stopMover(mover);
+
+        System.out.println("Wakeups: " + missed + " missed in " + ROUNDS + " rounds, " + parked + " of them after parking.");
+        return missed == 0;
+    }
+
+    /**
+     * Checks that the mover exits when interrupted, both while parked and while moving.
+     *
+     * @return Value indicating whether the check passed.
+     *
+     * @throws InterruptedException This exception is thrown if the main thread is interrupted.
+     */
+    private static boolean checkInterrupt() throws InterruptedException {
+        MouseMoverThread idle = startMover();
+        await(idle, true);
+
+        MouseMoverThread moving = startMover();
+        moving.setHeading(HEADING, HEADING);
+
+        boolean passed = stopMover(idle) & stopMover(moving);
+
+        System.out.println("Interrupt: " + (passed ? "both movers exited." : "a mover did not exit."));
+        return passed;
+    }
+
+    /**
+     * Starts a new mover at the highest rate, so that it decides whether to park as often as possible.
+     *
+     * @return The started mover.
+     */
+    private static MouseMoverThread startMover() {
+        MouseMoverThread mover = new MouseMoverThread();
+        mover.setRate(MouseMoverThread.MAX_RATE);
+        mover.setDaemon(true);
+        mover.start();
+
+        return mover;
+    }
+
+    /**
+     * Interrupts the specified mover, and waits for it to exit.
+     *
+     * @param mover The mover to stop.
+     *
+     * @return Value indicating whether the mover has exited in time.
+     *
+     * @throws InterruptedException This exception is thrown if the main thread is interrupted.
+     */
+    private static boolean stopMover(MouseMoverThread mover) throws InterruptedException {
+        mover.interrupt();
+        mover.join(TIMEOUT);
+
+        return !mover.isAlive();
+    }
+
+    /**
+     * Waits until the specified mover is parked without a deadline, which it only is while idle, or until it is not.
+     *
+     * @param mover  The mover to watch.
+     * @param parked Value indicating whether to wait for the mover to park, or to wake up.
+     *
+     * @return Value indicating whether the mover has reached the state in time.
+     */
+    private static boolean await(MouseMoverThread mover, boolean parked) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+
+        while ((mover.getState() == Thread.State.WAITING) != parked) {
+            if (System.nanoTime() - end > 0) {
+                return false;
+            }
+
+            Thread.yield();
+        }
+
+        return true;
+    }
+
+}
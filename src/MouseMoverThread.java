@@ -1,18 +1,160 @@
 import java.awt.*;
+import java.awt.geom.Point2D;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a new thread which runs in the background and smoothly moves the mouse to the specified coordinates.
+ *
+ * The mouse is moved at a fixed rate, which is set by the "airmouse.mover.rate" system property in hertz, 100 unless
+ * set otherwise. Each move has an absolute deadline, which is one period after the previous one, so that the time
+ * spent on moving the mouse does not add up to drift. The thread parks until shortly before the deadline, and spins
+ * for the rest, since parking alone may overshoot by up to a millisecond, or much more on some platforms; the spin
+ * window follows the overshoot measured on the current machine. When the thread falls behind by more than a few
+ * periods, for example after the machine was suspended, the missed moves are skipped instead of being made up in a
+ * burst. The heading is the number of pixels to move every 10 milliseconds, see {@link #HEADING_RATE}, and each move
+ * covers its share of that for the period of the rate, so the speed of the mouse does not depend on the rate.
+ *
+ * The achieved rate and the jitter of the moves are measured, and can be queried while the thread is running.
+ *
+ * The position of the cursor is tracked with sub-pixel precision, and the fractions of the headings are carried over
+ * between moves, so that slow, precise movements below half a pixel per move are not rounded away. Reading the
+ * position of the cursor is an expensive native call, therefore the tracked position is trusted between moves, and
+ * the cursor is only read again to pick up movements made by other mice: after the thread was idle, before the first
+ * move after the cursor stood still for a while, and every {@link #SYNC_INTERVAL} otherwise. While the cursor is moved
+ * on every tick, the device moving it has control, and a move by another mouse is only picked up by the next read;
+ * all other moves cost a single native call at most, and none if they stay within the same pixel.
+ *
+ * The heading is set by the threads of the servers, possibly more of them at once, while this thread reads it.
+ * Both of its components are packed as floats into a single volatile long, so the pair is always written and read
+ * as a whole, without locks on either side: a move never sees the X of one heading with the Y of another, and since
+ * the time of the heading is written after the heading itself, seeing the time of a heading means seeing the heading
+ * or a newer one.
+ *
+ * When the heading is zero, or has not been set for {@link #IDLE_TIMEOUT}, the thread parks until the next heading
+ * is set, which unparks it, and the first move is made right away; an idle mover costs no CPU time at all, and adds
+ * no latency to the first sample. The thread is stopped by interrupting it, after which it exits cooperatively.
  */
 public class MouseMoverThread extends Thread {
 
-    private long _time;
-    private double _x, _y;
+    /**
+     * The lowest supported rate of the moves in hertz.
+     */
+    public static final int MIN_RATE = 10;
+
+    /**
+     * The highest supported rate of the moves in hertz.
+     */
+    public static final int MAX_RATE = 1000;
+
+    /**
+     * The rate in hertz at which the heading is moved in whole, which is the one of the 10 milliseconds the thread
+     * used to sleep between moves; at other rates, the heading is scaled by the period.
+     */
+    public static final int HEADING_RATE = 100;
+
+    /**
+     * The number of periods the thread may fall behind, before the missed moves are skipped.
+     */
+    private static final int MAX_BEHIND = 4;
+
+    /**
+     * The longest time in nanoseconds the thread may spin before a deadline.
+     */
+    private static final long MAX_SPIN = 1000000;
+
+    /**
+     * The number of milliseconds after which the heading is no longer followed, if it was not set again.
+     */
+    public static final int IDLE_TIMEOUT = 1000;
+
+    /**
+     * The number of milliseconds after which the actual position of the cursor is read again while moving.
+     */
+    private static final int SYNC_INTERVAL = 250;
+
+    private volatile long _time;
+    private volatile long _heading;
+    private volatile boolean _idle;
+    private volatile int _rate;
+    private long _spin;
+    private double _posX, _posY;
+    private int _pixelX, _pixelY;
+    private int _lastX, _lastY;
+    private boolean _synced;
+    private long _syncTime;
+    private boolean _rested;
+    private volatile double _achievedRate;
+    private volatile double _jitter;
+    private volatile long _maxJitter;
+    private volatile long _skipped;
 
     /**
      * Initializes this instance.
      */
     public MouseMoverThread() {
+        setRate(Integer.getInteger("airmouse.mover.rate", 100));
+        setName("AirMouse mover");
+
+        _spin = MAX_SPIN / 10;
+    }
+
+    /**
+     * Gets the rate at which the mouse is moved.
+     *
+     * @return Rate in hertz.
+     */
+    public int getRate() {
+        return _rate;
+    }
+
+    /**
+     * Sets the rate at which the mouse is moved. The new rate takes effect from the next move.
+     *
+     * @param rate Rate in hertz, between {@link #MIN_RATE} and {@link #MAX_RATE}.
+     */
+    public void setRate(int rate) {
+        if (rate < MIN_RATE || rate > MAX_RATE) {
+            throw new IllegalArgumentException("The rate has to be between " + MIN_RATE + " and " + MAX_RATE + " Hz.");
+        }
 
+        _rate = rate;
+    }
+
+    /**
+     * Gets the rate at which the mouse was actually moved recently, as a moving average.
+     *
+     * @return Achieved rate in hertz, or zero if the mouse has not been moved yet.
+     */
+    public double getAchievedRate() {
+        return _achievedRate;
+    }
+
+    /**
+     * Gets how late the moves were made relative to their deadlines recently, as a moving average.
+     *
+     * @return Jitter in microseconds.
+     */
+    public double getJitter() {
+        return _jitter / 1000;
+    }
+
+    /**
+     * Gets the latest any move was made relative to its deadline, since the thread was started.
+     *
+     * @return Maximum jitter in microseconds.
+     */
+    public long getMaxJitter() {
+        return _maxJitter / 1000;
+    }
+
+    /**
+     * Gets the number of moves which were skipped, because the thread fell too far behind.
+     *
+     * @return Number of skipped moves.
+     */
+    public long getSkippedCount() {
+        return _skipped;
     }
 
     /**
@@ -21,57 +163,231 @@ public class MouseMoverThread extends Thread {
      * will not automatically start the thread and won't fail if such thread is not already initialized, in
      * order to allow pre-setting and/or pausing of the mouse movements.
      *
-     * @param x The X value of the coordinate to start navigating to.
-     * @param y The Y value of the coordinate to start navigating to.
+     * @param x The X value of the coordinate to start navigating to, in pixels per 10 milliseconds.
+     * @param y The Y value of the coordinate to start navigating to, in pixels per 10 milliseconds.
      */
     public void setHeading(double x, double y) {
-        _x = x;
-        _y = y;
-
+        _heading = (long)Float.floatToRawIntBits((float)x) << 32 | Float.floatToRawIntBits((float)y) & 0xFFFFFFFFL;
         _time = System.currentTimeMillis();
+
+        if (_idle) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Gets the heading which the next move will follow. Both components are read as a whole, so they always
+     * belong to the same heading, even while other threads are setting it.
+     *
+     * @return The X and Y values of the heading.
+     */
+    public Point2D.Float getHeading() {
+        long heading = _heading;
+
+        return new Point2D.Float(Float.intBitsToFloat((int)(heading >>> 32)), Float.intBitsToFloat((int)heading));
     }
 
     /**
-     * Runs in a separate thread until stopped. With 10 millisecond delays, it moves the mouse to
-     * the specified heading coordinate, given that the last time it was set is not more than a second.
+     * Runs in a separate thread until interrupted. On each deadline, it moves the mouse by the specified heading,
+     * given that the heading is not zero and the last time it was set is not more than {@link #IDLE_TIMEOUT}.
      *
      * @see Thread#run()
      */
     @Override
     public void run() {
-        while (true) {
-            if (System.currentTimeMillis() - _time > 1000) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        long period = TimeUnit.SECONDS.toNanos(1) / _rate;
+        long deadline = System.nanoTime() + period;
+        long last = 0;
+
+        while (!isInterrupted()) {
+            if (isIdle()) {
+                // Setting the flag before checking again makes sure that a heading set in the meantime either
+                // is seen by the check, or sees the flag and unparks the thread.
+                _idle = true;
+
+                while (isIdle() && !isInterrupted()) {
+                    LockSupport.park(this);
                 }
 
+                _idle = false;
+
+                deadline = System.nanoTime();
+                last = 0;
+                _synced = false;
                 continue;
             }
 
-            Point mouse = MouseInfo.getPointerInfo().getLocation();
-            Dimension screen = MouseHandler.getScreenSize();
+            long now = waitUntil(deadline);
 
-            int nextX = (int)(Math.round(mouse.getX() + _x) % screen.getWidth());
-            int nextY = (int)(Math.round(mouse.getY() + _y) % screen.getHeight());
+            measure(now, now - deadline, last);
+            last = now;
 
-            if (nextX < 0) {
-                nextX = (int)screen.getWidth();
-            }
+            move(now);
 
-            if (nextY < 0) {
-                nextY = (int)screen.getHeight();
+            period = TimeUnit.SECONDS.toNanos(1) / _rate;
+            deadline += period;
+
+            long behind = System.nanoTime() - deadline;
+
+            if (behind > MAX_BEHIND * period) {
+                _skipped += behind / period;
+                deadline += (behind / period + 1) * period;
             }
+        }
+    }
+
+    /**
+     * Decides whether there is nothing to move: the heading is zero, or was not set recently.
+     *
+     * @return Value indicating whether the thread should park until the next heading is set.
+     */
+    private boolean isIdle() {
+        return (_heading & 0x7FFFFFFF7FFFFFFFL) == 0 || System.currentTimeMillis() - _time > IDLE_TIMEOUT;
+    }
+
+    /**
+     * Moves the tracked position by the share of the current heading for a period, wrapping around the edges
+     * of the screen, and moves the mouse, if the position has reached another pixel. The actual position of the
+     * cursor is read first, if it was not read since the thread was idle, or for {@link #SYNC_INTERVAL}, or
+     * if the cursor stood still since the previous move, in which case another mouse may have moved it.
+     *
+     * @param now The time of the move, as returned by {@see System#nanoTime()}.
+     */
+    private void move(long now) {
+        if (!_synced || now - _syncTime >= TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL)) {
+            sync();
+            _syncTime = now;
+        }
+
+        long heading = _heading;
+        double scale = (double)HEADING_RATE / _rate;
+        double x = Float.intBitsToFloat((int)(heading >>> 32)) * scale;
+        double y = Float.intBitsToFloat((int)heading) * scale;
+
+        if (!advance(x, y)) {
+            _rested = true;
+            return;
+        }
 
-            MouseHandler.moveTo(nextX, nextY);
+        if (_rested && _syncTime != now) {
+            _syncTime = now;
 
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            if (sync() && !advance(x, y)) {
+                return;
             }
         }
+
+        _rested = false;
+        _lastX = _pixelX;
+        _lastY = _pixelY;
+
+        MouseHandler.moveTo(_pixelX, _pixelY);
+    }
+
+    /**
+     * Moves the tracked position by the specified heading, wrapping around the edges of the screen.
+     *
+     * @param x The X value of the heading.
+     * @param y The Y value of the heading.
+     *
+     * @return Value indicating whether the position has reached another pixel.
+     */
+    private boolean advance(double x, double y) {
+        Dimension screen = MouseHandler.getScreenSize();
+
+        _posX = wrap(_posX + x, screen.getWidth());
+        _posY = wrap(_posY + y, screen.getHeight());
+
+        int nextX = (int)_posX;
+        int nextY = (int)_posY;
+
+        if (nextX == _pixelX && nextY == _pixelY) {
+            return false;
+        }
+
+        _pixelX = nextX;
+        _pixelY = nextY;
+
+        return true;
+    }
+
+    /**
+     * Reads the actual position of the cursor, and if it is not where it was last moved to, because another
+     * mouse has moved it, or the thread was idle, continues from there, dropping the carried fractions.
+     *
+     * @return Value indicating whether the cursor was moved by someone else.
+     */
+    private boolean sync() {
+        Point mouse = MouseInfo.getPointerInfo().getLocation();
+        boolean moved = !_synced || mouse.x != _lastX || mouse.y != _lastY;
+
+        if (moved) {
+            _posX = _pixelX = _lastX = mouse.x;
+            _posY = _pixelY = _lastY = mouse.y;
+        }
+
+        _synced = true;
+        return moved;
+    }
+
+    /**
+     * Wraps the specified coordinate around the edge of the screen.
+     *
+     * @param pos  The coordinate, which may be off the screen.
+     * @param size The size of the screen along the axis.
+     *
+     * @return The coordinate between zero and the size of the screen.
+     */
+    private static double wrap(double pos, double size) {
+        return pos - Math.floor(pos / size) * size;
+    }
+
+    /**
+     * Waits until the specified deadline: parks until the spin window before it, and spins for the rest.
+     * The spin window is adjusted to how much parking overshoots the requested time on this machine.
+     *
+     * @param deadline The time to wait until, as returned by {@see System#nanoTime()}.
+     *
+     * @return The time when the wait ended.
+     */
+    private long waitUntil(long deadline) {
+        long now = System.nanoTime();
+        long wake = deadline - _spin;
+
+        if (wake - now > 0) {
+            LockSupport.parkNanos(this, wake - now);
+            now = System.nanoTime();
+
+            long overshoot = Math.max(now - wake, 0);
+            _spin = Math.min(_spin + (overshoot * 2 - _spin) / 8, MAX_SPIN);
+        }
+
+        while (deadline - now > 0) {
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+
+        return now;
+    }
+
+    /**
+     * Updates the moving averages of the achieved rate and the jitter with a move.
+     *
+     * @param now      The time of the move.
+     * @param lateness The number of nanoseconds the move was made after its deadline.
+     * @param last     The time of the previous move, or zero if this is the first one after being idle.
+     */
+    private void measure(long now, long lateness, long last) {
+        _jitter += (lateness - _jitter) / 16;
+
+        if (lateness > _maxJitter) {
+            _maxJitter = lateness;
+        }
+
+        if (last != 0 && now > last) {
+            double rate = (double)TimeUnit.SECONDS.toNanos(1) / (now - last);
+            _achievedRate = _achievedRate == 0 ? rate : _achievedRate + (rate - _achievedRate) / 16;
+        }
     }
 
 }
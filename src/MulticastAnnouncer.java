@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Announces the server periodically on a multicast group, so that clients which are already listening can connect
+ * without having to broadcast a discovery request and wait for the {@see UdpServer} to answer.
+ *
+ * The announcement is a single line: "RS-AirMouse announce {host} {port} {versions}", where the versions are the
+ * comma-separated tokens of the protocols the server speaks. It is sent on each multicast-capable interface which
+ * has a preferred address, with the address of that interface as the host, every {@link #getInterval()} and
+ * immediately when the server is started, the port of the TCP server changes or the local addresses change.
+ * Announcements are never sent more often than {@link #getMinimumInterval()}, regardless of what triggered them.
+ *
+ * The intervals can be set with the "airmouse.announce.interval" and "airmouse.announce.min" system properties,
+ * in milliseconds, or at runtime. An interval of zero disables the periodic announcements.
+ *
+ * @author RoliSoft
+ */
+public class MulticastAnnouncer implements Runnable {
+
+    /**
+     * The multicast group on which the server is announced.
+     */
+    public static final String GROUP = "239.255.83.37";
+
+    /**
+     * The port on which the clients listen for announcements.
+     */
+    public static final int PORT = 8338;
+
+    /**
+     * The number of milliseconds to wait between looking for changes of the port and the local addresses.
+     */
+    private static final int CHECK_INTERVAL = 1000;
+
+    private ServerManager _serverManager;
+    private InterfaceTable _interfaces;
+    private Thread _thread;
+    private DatagramChannel _channel;
+    private InetSocketAddress _group;
+    private volatile int _interval;
+    private volatile int _minInterval;
+    private volatile boolean _pending;
+    private long _lastTime;
+    private int _lastPort;
+    private InterfaceTable.Entry[] _lastEntries;
+    private long _count;
+
+    /**
+     * Initializes this instance.
+     *
+     * @param serverManager The manager instance.
+     * @param interfaces    The table of local addresses to announce.
+     */
+    public MulticastAnnouncer(ServerManager serverManager, InterfaceTable interfaces) {
+        _serverManager = serverManager;
+        _interfaces = interfaces;
+        _interval = Integer.getInteger("airmouse.announce.interval", 10000);
+        _minInterval = Integer.getInteger("airmouse.announce.min", 500);
+        _lastPort = -1;
+    }
+
+    /**
+     * Gets the number of milliseconds between the periodic announcements.
+     *
+     * @return Announcement interval, or zero if the periodic announcements are disabled.
+     */
+    public int getInterval() {
+        return _interval;
+    }
+
+    /**
+     * Sets the number of milliseconds between the periodic announcements.
+     *
+     * @param interval Announcement interval, or zero to disable the periodic announcements.
+     */
+    public void setInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("The interval cannot be negative.");
+        }
+
+        _interval = interval;
+        LockSupport.unpark(_thread);
+    }
+
+    /**
+     * Gets the minimum number of milliseconds between any two announcements.
+     *
+     * @return Minimum announcement interval.
+     */
+    public int getMinimumInterval() {
+        return _minInterval;
+    }
+
+    /**
+     * Sets the minimum number of milliseconds between any two announcements, in order to limit the rate of
+     * the announcements when the port or the local addresses change frequently.
+     *
+     * @param interval Minimum announcement interval.
+     */
+    public void setMinimumInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("The interval cannot be negative.");
+        }
+
+        _minInterval = interval;
+    }
+
+    /**
+     * Gets the number of announcements sent since the announcer was started, counting each interface separately.
+     *
+     * @return Number of sent announcements.
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    /**
+     * Starts announcing the server in the background asynchronously, beginning with an immediate announcement.
+     *
+     * @throws IOException Forwarded exception shall the multicast channel fail to open.
+     */
+    public void start() throws IOException {
+        stop();
+
+        _group = new InetSocketAddress(InetAddress.getByName(GROUP), PORT);
+        _channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        _channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+
+        _pending = true;
+        _thread = _serverManager.newThread("AirMouse announcer", this);
+        _thread.start();
+    }
+
+    /**
+     * Stops announcing the server, and waits for the thread to finish.
+     */
+    public void stop() {
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        ServerManager.stopThread(_thread);
+        _thread = null;
+    }
+
+    /**
+     * Requests an announcement to be sent as soon as the rate limit allows it.
+     */
+    public void announce() {
+        _pending = true;
+        LockSupport.unpark(_thread);
+    }
+
+    /**
+     * Runs in a separate thread until stopped, where it sends the announcements when they are due,
+     * and looks for changes of the port and the local addresses in the meantime.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            long sinceLast = now - _lastTime;
+            long interval = TimeUnit.MILLISECONDS.toNanos(_interval);
+
+            if (_serverManager.getPort() != _lastPort || _interfaces.getEntries() != _lastEntries) {
+                _pending = true;
+            }
+
+            if (_interval != 0 && sinceLast >= interval) {
+                _pending = true;
+            }
+
+            long wait = TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL);
+
+            if (_pending) {
+                long limit = TimeUnit.MILLISECONDS.toNanos(_minInterval);
+
+                if (_lastEntries == null || sinceLast >= limit) {
+                    _pending = false;
+
+                    if (!send()) {
+                        break;
+                    }
+
+                    _lastTime = now;
+                    sinceLast = 0;
+                } else {
+                    wait = Math.min(wait, limit - sinceLast);
+                }
+            }
+
+            if (_interval != 0) {
+                wait = Math.min(wait, interval - sinceLast);
+            }
+
+            LockSupport.parkNanos(this, Math.max(wait, 0));
+        }
+    }
+
+    /**
+     * Sends the announcement on each multicast-capable interface with a preferred address,
+     * or on the default interface, if there are none.
+     *
+     * @return Value indicating whether the channel is still open.
+     */
+    private boolean send() {
+        int port = _serverManager.getPort();
+        InterfaceTable.Entry[] entries = _interfaces.getEntries();
+        String versions = _serverManager.getProtocolRegistry().getVersions();
+
+        _lastPort = port;
+        _lastEntries = entries;
+
+        if (port == -1) {
+            return true;
+        }
+
+        boolean sent = false;
+
+        try {
+            for (InterfaceTable.Entry entry : entries) {
+                if (!entry.isPreferred() || entry.getInterface() == null || !entry.getInterface().supportsMulticast()) {
+                    continue;
+                }
+
+                _channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, entry.getInterface());
+                sent |= send(entry, port, versions);
+            }
+
+            if (!sent) {
+                send(_interfaces.getPreferred(), port, versions);
+            }
+        } catch (ClosedChannelException ex) {
+            return false;
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.FINE, null, ex);
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the announcement of the specified address on the current multicast interface of the channel.
+     *
+     * @param entry    The local address to announce.
+     * @param port     The port of the TCP server.
+     * @param versions The supported protocol versions.
+     *
+     * @return Value indicating whether the announcement was sent.
+     *
+     * @throws ClosedChannelException Occurs when the announcer was stopped.
+     */
+    private boolean send(InterfaceTable.Entry entry, int port, String versions) throws ClosedChannelException {
+        byte[] announcement = ("RS-AirMouse announce " + entry.getHostAddress() + " " + port + " " + versions).getBytes();
+
+        try {
+            _channel.send(ByteBuffer.wrap(announcement), _group);
+        } catch (ClosedChannelException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.FINE, null, ex);
+            return false;
+        }
+
+        _count++;
+
+        if (DiagnosticLog.DATAGRAMS.sample()) {
+            DiagnosticLog.DATAGRAMS.log("Announcement sent from {0}", entry.getHostAddress());
+        }
+
+        return true;
+    }
+
+}
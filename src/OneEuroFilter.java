@@ -0,0 +1,149 @@
+/**
+ * Provides a One-Euro filter, which is a first-order low-pass filter whose cutoff frequency rises with the speed
+ * of the movement: slow, precise movements are smoothed heavily, removing the jitter, while fast movements pass
+ * with little lag. The speed itself is estimated from the derivative of the values, smoothed at a fixed cutoff.
+ *
+ * The lag of a first-order low-pass filter is its time constant, 1 / (2 * pi * cutoff), which is reported for the
+ * current cutoff of the slower axis.
+ *
+ * @author RoliSoft
+ */
+public class OneEuroFilter extends SensorFilter {
+
+    /**
+     * The default cutoff frequency in hertz at zero speed.
+     */
+    public static final double DEFAULT_MIN_CUTOFF = 1;
+
+    /**
+     * The default increase of the cutoff frequency per unit of speed.
+     */
+    public static final double DEFAULT_BETA = 0.05;
+
+    /**
+     * The default cutoff frequency in hertz of the derivative.
+     */
+    public static final double DEFAULT_DERIVATIVE_CUTOFF = 1;
+
+    private final double _minCutoff;
+    private final double _beta;
+    private final double _derivativeCutoff;
+
+    private final double[] _value = new double[AXES];
+    private final double[] _derivative = new double[AXES];
+    private final double[] _cutoff = new double[AXES];
+    private boolean _initialized;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param minCutoff        The cutoff frequency in hertz at zero speed, lower values smooth more.
+     * @param beta             The increase of the cutoff frequency per unit of speed, higher values lag less.
+     * @param derivativeCutoff The cutoff frequency in hertz of the derivative.
+     */
+    public OneEuroFilter(double minCutoff, double beta, double derivativeCutoff) {
+        if (minCutoff <= 0 || derivativeCutoff <= 0 || beta < 0) {
+            throw new IllegalArgumentException("The cutoff frequencies have to be positive, and beta cannot be negative.");
+        }
+
+        _minCutoff        = minCutoff;
+        _beta             = beta;
+        _derivativeCutoff = derivativeCutoff;
+
+        reset();
+    }
+
+    /**
+     * Filters the values of the axes in place.
+     *
+     * @param values The values of the axes, which are replaced by the filtered ones.
+     * @param dt     The number of seconds since the previous sample.
+     */
+    @Override
+    public void filter(double[] values, double dt) {
+        if (!_initialized) {
+            for (int i = 0; i < AXES; i++) {
+                _value[i] = values[i];
+                _derivative[i] = 0;
+            }
+
+            _initialized = true;
+            return;
+        }
+
+        dt = clamp(dt);
+
+        for (int i = 0; i < AXES; i++) {
+            double derivative = (values[i] - _value[i]) / dt;
+            _derivative[i] += alpha(_derivativeCutoff, dt) * (derivative - _derivative[i]);
+
+            double cutoff = _minCutoff + _beta * Math.abs(_derivative[i]);
+            _value[i] += alpha(cutoff, dt) * (values[i] - _value[i]);
+            _cutoff[i] = cutoff;
+
+            values[i] = _value[i];
+        }
+    }
+
+    /**
+     * Forgets the previous samples, so that the next sample is passed through as it is.
+     */
+    @Override
+    public void reset() {
+        _initialized = false;
+
+        for (int i = 0; i < AXES; i++) {
+            _cutoff[i] = _minCutoff;
+        }
+    }
+
+    /**
+     * Gets the lag which the filter currently adds to the movements, the time constant at the lower cutoff of the axes.
+     *
+     * @return Lag in milliseconds.
+     */
+    @Override
+    public double getLag() {
+        double cutoff = _cutoff[0];
+
+        for (int i = 1; i < AXES; i++) {
+            cutoff = Math.min(cutoff, _cutoff[i]);
+        }
+
+        return 1000 / (2 * Math.PI * cutoff);
+    }
+
+    /**
+     * Gets the type of the filter.
+     *
+     * @return {@link #ONE_EURO}.
+     */
+    @Override
+    public int getType() {
+        return ONE_EURO;
+    }
+
+    /**
+     * Returns the specification of the current instance, which {@link #parse} accepts.
+     *
+     * @return Specification of the filter.
+     */
+    @Override
+    public String toString() {
+        return "oneeuro:" + _minCutoff + "," + _beta + "," + _derivativeCutoff;
+    }
+
+    /**
+     * Calculates the smoothing factor of a first-order low-pass filter.
+     *
+     * @param cutoff The cutoff frequency in hertz.
+     * @param dt     The number of seconds since the previous sample.
+     *
+     * @return Smoothing factor between zero and one.
+     */
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1 / (2 * Math.PI * cutoff);
+        return dt / (dt + tau);
+    }
+
+}
@@ -1,7 +1,8 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Provides a plain-text protocol for passing information between server and client.
@@ -11,101 +12,563 @@ import java.util.logging.Logger;
  * packet is the "command". After the command is parsed, its arguments are de-serialized to their
  * own according type and the registered {@see ClientListener} instances are notified of the event.
  *
+ * Packets are parsed directly from the bytes in the receive buffer of the session, without building
+ * any intermediate strings. Sensor data is de-serialized into a single reused array, therefore a
+ * steady stream of "data" packets is processed without any allocations.
+ *
+ * This protocol is also the fallback during the handshake: the client may append a version token to the
+ * handshake line to request a different protocol, and the server answers with the token of the protocol
+ * which will be spoken for the rest of the session. Clients which do not send a token will not be answered.
+ * The answer also contains the port and session token of the {@see UdpDataServer}, if it is running, which
+ * the client may use to send its sensor data out-of-band, and the resume token of the session, if resuming
+ * is enabled, in which case the port and token are zeros if out-of-band data is not available:
+ * "RS-AirMouse {version} [port token [resume]]". A client which has lost its connection may send the resume
+ * token after the version token in its next handshake, in order to continue where it left off.
+ *
+ * Sensor data is sent as "data {x},{y},{z}", optionally followed by ",{sensor}", the type of the sensor which the
+ * sample was read from, so that the samples of more sensors can be interleaved, see {@see FusionEngine}.
+ *
+ * Clients which have sent a version token are periodically sent a "ping {time}" line, which they have to answer
+ * with "pong {time} {received} {answered}", where the times are in microseconds, see {@see ClockEstimator}.
+ *
  * @author RoliSoft
  */
 public class PlainTextProtocol extends Protocol {
 
+    /**
+     * The version token which the client may send in the handshake in order to select this protocol.
+     */
+    public static final String VERSION = "text";
+
+    /**
+     * Powers of ten which are exactly representable as a double.
+     */
+    private static final double[] POW10 = {
+            1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * The first word of the handshake line.
+     */
+    private static final byte[] MAGIC = "RS-AirMouse".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final double[] _sample = new double[DataProcessorEngine.SAMPLE_SIZE];
+    private boolean _skipLf;
+    private int _scanned;
+    private boolean _negotiated;
+
     /**
      * Initializes the current instance.
      *
-     * @param server The server on which this protocol is spoken.
+     * @param session The session in which this protocol is spoken.
      */
-    public PlainTextProtocol(TcpServer server) {
-        super(server);
+    public PlainTextProtocol(Session session) {
+        super(session);
+    }
+
+    /**
+     * Peeks into the receive buffer to decide whether the client is sending a plain-text handshake.
+     *
+     * @param buf The receive buffer.
+     *
+     * @return One of the detection results defined in {@see ProtocolRegistry}.
+     */
+    public static int detect(ByteBuffer buf) {
+        int pos = buf.position();
+        int lim = buf.limit();
+
+        while (pos < lim && (buf.get(pos) == ' ' || buf.get(pos) == '\t' || buf.get(pos) == '\f')) {
+            pos++;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++, pos++) {
+            if (pos == lim) {
+                return ProtocolRegistry.UNDECIDED;
+            }
+
+            if (buf.get(pos) != MAGIC[i]) {
+                return ProtocolRegistry.MISMATCH;
+            }
+        }
+
+        return ProtocolRegistry.MATCH;
     }
 
     /**
      * Initiates a handshake with the client.
+     * The handshake line is "RS-AirMouse {host} {type} [version [resume]]", where the optional version
+     * token selects the protocol to continue the session with, and the optional resume token
+     * resumes a session whose connection was lost.
+     *
+     * @return The protocol to continue the session with: this instance, or the one requested by the client;
+     *         or null if the handshake line was not yet fully received.
      *
      * @throws java.io.IOException Occurs when handshake or stream is invalid.
      */
     @Override
-    public void handshake() throws IOException {
-        String line = getServer().getInputStream().readLine();
+    public Protocol handshake() throws IOException {
+        ByteBuffer buf = getSession().getReadBuffer();
+        int end = nextLine(buf);
+
+        if (end == -1) {
+            if (getSession().isEndOfStream()) {
+                throw new IOException("Handshake error, connection closed.");
+            }
+
+            return null;
+        }
+
+        String line = new String(buf.array(), buf.arrayOffset() + buf.position(), end - buf.position(), StandardCharsets.ISO_8859_1);
+        consumeLine(buf, end);
+
         StringTokenizer st = new StringTokenizer(line);
 
         if (!st.hasMoreTokens() || !st.nextToken().contentEquals("RS-AirMouse")) {
             throw new IOException("Handshake error, line not valid:\r\n" + line);
         }
 
-        String host = st.nextToken();
-        int type = Integer.parseInt(st.nextToken());
+        String host;
+        int type;
+        String version;
+        long resume;
 
-        for (ClientListener dl : getServer().getListeners()) {
-            dl.clientConnected(getServer().getClient().getInetAddress(), host, type);
+        try {
+            host = st.nextToken();
+            type = Integer.parseInt(st.nextToken());
+            version = st.hasMoreTokens() ? st.nextToken() : null;
+            resume = st.hasMoreTokens() ? Long.parseUnsignedLong(st.nextToken(), 16) : 0;
+        } catch (NoSuchElementException | NumberFormatException ex) {
+            throw new IOException("Handshake error, line not valid:\r\n" + line, ex);
         }
+
+        Protocol protocol = this;
+
+        if (version != null) {
+            if (version.contentEquals(BinaryProtocol.VERSION)) {
+                protocol = new BinaryProtocol(getSession(), _skipLf);
+            } else {
+                version = VERSION;
+                _negotiated = true;
+            }
+
+            String reply = "RS-AirMouse " + version;
+
+            long token = openDataSession();
+            long session = getSession().getResumeToken();
+
+            if (token != 0 || session != 0) {
+                reply += " " + (token != 0 ? getDataPort() : 0) + " " + Long.toHexString(token);
+            }
+
+            if (session != 0) {
+                reply += " " + Long.toHexString(session);
+            }
+
+            byte[] bytes = (reply + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            getSession().beginWrite(bytes.length).put(bytes);
+            getSession().flush();
+        }
+
+        fireClientConnected(host, type, resume);
+
+        return protocol;
     }
 
     /**
      * Reads the next packet from the stream and processes it.
      *
-     * @return Value indicating whether to continue reading.
+     * Sensor data is passed along through the {@see SampleCoalescer} of the session, which
+     * only keeps the newest sample when more of them are already waiting on the socket.
+     *
+     * @return {@link #CONTINUE}, {@link #INCOMPLETE} or {@link #CLOSE}.
      *
      * @throws IOException Occurs when the stream becomes invalid.
      */
     @Override
-    public boolean readNext() throws IOException {
-        String line = getServer().getInputStream().readLine();
+    public int readNext() throws IOException {
+        ByteBuffer buf = getSession().getReadBuffer();
+        int end = nextLine(buf);
 
-        Logger.getLogger(AccelerometerEngine.class.getName()).log(Level.INFO, line);
+        if (end == -1) {
+            return getSession().isEndOfStream() ? CLOSE : INCOMPLETE;
+        }
 
-        if (line == null || line.trim().toLowerCase().contentEquals("quit")) {
-            return false;
+        byte[] b = buf.array();
+        int off = buf.arrayOffset();
+        int start = off + buf.position();
+        int stop = off + end;
+
+        consumeLine(buf, end);
+
+        if (DiagnosticLog.PACKETS.sample()) {
+            DiagnosticLog.PACKETS.log("Packet received: {0}", b, start, stop - start);
+        }
+
+        if (equalsIgnoreCase(b, trimStart(b, start, stop), trimEnd(b, start, stop), "quit")) {
+            return CLOSE;
         }
 
-        int idx;
-        String cmd = ((idx = line.indexOf(" ")) != -1 ? line.substring(0, idx) : line).trim().toLowerCase();
+        int idx = indexOf(b, start, stop, (byte)' ');
+        int cmdEnd = idx != -1 ? idx : stop;
+        int cmdStart = trimStart(b, start, cmdEnd);
+        cmdEnd = trimEnd(b, cmdStart, cmdEnd);
+
+        int args = idx != -1 ? idx + 1 : start;
+
+        try {
+            if (equalsIgnoreCase(b, cmdStart, cmdEnd, "data")) {
+                parseSample(b, args, stop);
+
+                fireSensorDataReceived(_sample);
+            } else if (equalsIgnoreCase(b, cmdStart, cmdEnd, "type")) {
+                int type = parseInt(b, args, stop);
 
-        switch (cmd) {
-            case "data": {
-                String data = line.substring(idx + 1);
-                StringTokenizer st = new StringTokenizer(data, ",");
+                fireSensorChangeReceived(type);
+            } else if (equalsIgnoreCase(b, cmdStart, cmdEnd, "reset")) {
+                fireSensorRecalibrateRequest();
+            } else if (equalsIgnoreCase(b, cmdStart, cmdEnd, "tap")) {
+                boolean release = !equals(b, args, stop, "on");
 
-                double[] vals = {
-                        st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0,
-                        st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0,
-                        st.hasMoreTokens() ? Double.parseDouble(st.nextToken()) : 0
-                };
+                fireClickRequested(release);
+            } else if (equalsIgnoreCase(b, cmdStart, cmdEnd, "focus")) {
+                boolean take = !equals(b, args, stop, "off");
 
-                for (ClientListener dl : getServer().getListeners()) {
-                    dl.sensorDataReceived(vals);
+                fireFocusRequested(take);
+            } else if (equalsIgnoreCase(b, cmdStart, cmdEnd, "pong")) {
+                StringTokenizer st = new StringTokenizer(new String(b, args, stop - args, StandardCharsets.ISO_8859_1));
+
+                if (st.countTokens() < 3) {
+                    throw new NumberFormatException("Pong requires three timestamps.");
                 }
-                break;
+
+                firePongReceived(Long.parseLong(st.nextToken()), Long.parseLong(st.nextToken()), Long.parseLong(st.nextToken()));
             }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Malformed packet received.", ex);
+        }
 
-            case "type": {
-                int type = Integer.parseInt(line.substring(idx + 1));
+        return CONTINUE;
+    }
 
-                for (ClientListener dl : getServer().getListeners()) {
-                    dl.sensorChangeReceived(type);
-                }
-                break;
+    /**
+     * Sends a ping to the client, if it has negotiated this protocol during the handshake.
+     *
+     * @param time The server time in microseconds, which the client has to echo.
+     *
+     * @return Value indicating whether the ping was sent.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    @Override
+    public boolean sendPing(long time) throws IOException {
+        if (!_negotiated) {
+            return false;
+        }
+
+        byte[] bytes = ("ping " + time + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        getSession().beginWrite(bytes.length).put(bytes);
+        getSession().flush();
+
+        return true;
+    }
+
+    /**
+     * Finds the end of the next line in the receive buffer, which is terminated by a '\n', '\r' or "\r\n".
+     * A line which is terminated by the end of the stream is still returned, just like it would be by
+     * {@see java.io.DataInputStream.readLine()}. Bytes which were already scanned in a previous call
+     * are not scanned again.
+     *
+     * @param buf The receive buffer.
+     *
+     * @return The buffer index of the line terminator, or -1 if the line was not yet fully received.
+     */
+    private int nextLine(ByteBuffer buf) {
+        if (_skipLf && buf.hasRemaining()) {
+            _skipLf = false;
+
+            if (buf.get(buf.position()) == '\n') {
+                buf.position(buf.position() + 1);
             }
+        }
 
-            case "reset": {
-                for (ClientListener dl : getServer().getListeners()) {
-                    dl.sensorRecalibrateRequest();
+        byte[] b = buf.array();
+        int off = buf.arrayOffset();
+        int lim = off + buf.limit();
+
+        for (int i = off + buf.position() + _scanned; i < lim; i++) {
+            if (b[i] == '\n' || b[i] == '\r') {
+                return i - off;
+            }
+        }
+
+        _scanned = buf.remaining();
+
+        if (getSession().isEndOfStream() && buf.hasRemaining()) {
+            return buf.limit();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Advances the receive buffer past the line ending at the specified index and its terminator.
+     *
+     * @param buf The receive buffer.
+     * @param end The buffer index of the line terminator as returned by {@link #nextLine(ByteBuffer)}.
+     */
+    private void consumeLine(ByteBuffer buf, int end) {
+        _scanned = 0;
+
+        if (end == buf.limit()) {
+            buf.position(end);
+            return;
+        }
+
+        byte term = buf.get(end);
+        buf.position(end + 1);
+
+        if (term == '\r') {
+            if (buf.hasRemaining()) {
+                if (buf.get(buf.position()) == '\n') {
+                    buf.position(buf.position() + 1);
                 }
-                break;
+            } else {
+                _skipLf = true;
+            }
+        }
+    }
+
+    /**
+     * De-serializes up to three comma-separated floating-point numbers into the sample array.
+     * Missing values are substituted with zeros, excess values are ignored.
+     *
+     * @param b     The buffer to parse from.
+     * @param start The index of the first byte.
+     * @param end   The index after the last byte.
+     *
+     * @throws NumberFormatException Occurs when one of the values is not a valid number.
+     */
+    private void parseSample(byte[] b, int start, int end) throws NumberFormatException {
+        int n = 0;
+        int pos = start;
+
+        while (n < _sample.length && pos < end) {
+            int sep = indexOf(b, pos, end, (byte)',');
+            if (sep == -1) {
+                sep = end;
             }
 
-            case "tap": {
-                boolean release = !line.substring(idx + 1).contentEquals("on");
+            if (sep > pos) {
+                _sample[n++] = parseDouble(b, pos, sep);
+            }
+
+            pos = sep + 1;
+        }
+
+        while (n < _sample.length) {
+            _sample[n++] = 0;
+        }
+    }
+
+    /**
+     * Parses a floating-point number with the same rules as {@see Double.parseDouble(String)}.
+     * Plain decimal numbers whose value can be computed exactly are parsed in place, anything
+     * else (too many significant digits, hexadecimal, "NaN", type suffixes, etc.) is handed over
+     * to {@see Double.parseDouble(String)} itself.
+     *
+     * @param b     The buffer to parse from.
+     * @param start The index of the first byte.
+     * @param end   The index after the last byte.
+     *
+     * @return The parsed number.
+     *
+     * @throws NumberFormatException Occurs when the value is not a valid number.
+     */
+    private static double parseDouble(byte[] b, int start, int end) throws NumberFormatException {
+        int from = trimStart(b, start, end);
+        int to = trimEnd(b, from, end);
+        int i = from;
 
-                for (ClientListener dl : getServer().getListeners()) {
-                    dl.clickRequested(release);
+        boolean negative = false;
+        if (i < to && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i++] == '-';
+        }
+
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean any = false;
+
+        for (; i < to && b[i] >= '0' && b[i] <= '9'; i++) {
+            any = true;
+            if (mantissa != 0 || b[i] != '0') {
+                mantissa = mantissa * 10 + (b[i] - '0');
+                digits++;
+            }
+        }
+
+        if (i < to && b[i] == '.') {
+            for (i++; i < to && b[i] >= '0' && b[i] <= '9'; i++) {
+                any = true;
+                if (mantissa != 0 || b[i] != '0') {
+                    mantissa = mantissa * 10 + (b[i] - '0');
+                    digits++;
                 }
-                break;
+                scale--;
+            }
+        }
+
+        if (any && i < to && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+
+            boolean negExp = false;
+            if (i < to && (b[i] == '-' || b[i] == '+')) {
+                negExp = b[i++] == '-';
+            }
+
+            int exp = 0;
+            boolean expAny = false;
+            for (; i < to && b[i] >= '0' && b[i] <= '9' && exp < 1000; i++) {
+                exp = exp * 10 + (b[i] - '0');
+                expAny = true;
+            }
+
+            if (!expAny) {
+                any = false;
+            }
+
+            scale += negExp ? -exp : exp;
+        }
+
+        if (any && i == to && digits <= 15) {
+            double value = mantissa;
+
+            if (mantissa == 0) {
+                return negative ? -0.0 : 0.0;
+            } else if (scale >= 0 && scale < POW10.length) {
+                value *= POW10[scale];
+                return negative ? -value : value;
+            } else if (scale < 0 && -scale < POW10.length) {
+                value /= POW10[-scale];
+                return negative ? -value : value;
+            }
+        }
+
+        return Double.parseDouble(new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Parses an integer with the same rules as {@see Integer.parseInt(String)}.
+     *
+     * @param b     The buffer to parse from.
+     * @param start The index of the first byte.
+     * @param end   The index after the last byte.
+     *
+     * @return The parsed number.
+     *
+     * @throws NumberFormatException Occurs when the value is not a valid number.
+     */
+    private static int parseInt(byte[] b, int start, int end) throws NumberFormatException {
+        int i = start;
+
+        boolean negative = false;
+        if (i < end && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i++] == '-';
+        }
+
+        if (i < end && end - i <= 9) {
+            int value = 0;
+
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                value = value * 10 + (b[i] - '0');
+            }
+
+            if (i == end) {
+                return negative ? -value : value;
+            }
+        }
+
+        return Integer.parseInt(new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Finds the first occurrence of the specified byte.
+     *
+     * @return The index of the byte, or -1 if not found.
+     */
+    private static int indexOf(byte[] b, int start, int end, byte chr) {
+        for (int i = start; i < end; i++) {
+            if (b[i] == chr) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Skips leading whitespace and control characters, as {@see String.trim()} would.
+     *
+     * @return The index of the first non-whitespace byte.
+     */
+    private static int trimStart(byte[] b, int start, int end) {
+        while (start < end && (b[start] & 0xFF) <= ' ') {
+            start++;
+        }
+
+        return start;
+    }
+
+    /**
+     * Skips trailing whitespace and control characters, as {@see String.trim()} would.
+     *
+     * @return The index after the last non-whitespace byte.
+     */
+    private static int trimEnd(byte[] b, int start, int end) {
+        while (end > start && (b[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        return end;
+    }
+
+    /**
+     * Compares the specified bytes to a lower-case ASCII keyword, ignoring case.
+     *
+     * @return Value indicating whether the bytes match the keyword.
+     */
+    private static boolean equalsIgnoreCase(byte[] b, int start, int end, String keyword) {
+        if (end - start != keyword.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < keyword.length(); i++) {
+            int chr = b[start + i];
+            if (chr >= 'A' && chr <= 'Z') {
+                chr += 'a' - 'A';
+            }
+
+            if (chr != keyword.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares the specified bytes to an ASCII keyword.
+     *
+     * @return Value indicating whether the bytes match the keyword.
+     */
+    private static boolean equals(byte[] b, int start, int end, String keyword) {
+        if (end - start != keyword.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < keyword.length(); i++) {
+            if (b[start + i] != keyword.charAt(i)) {
+                return false;
             }
         }
 
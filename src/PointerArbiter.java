@@ -0,0 +1,338 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides which of the connected devices controls the mouse, when more of them are streaming at the same time.
+ *
+ * Each session is given its own {@see Device}, through which its engine sets the heading and its clicks are
+ * performed. Without arbitration, the devices would overwrite each other's heading with every sample.
+ * The decision is made by one of the following policies:
+ *
+ * - {@link #FIRST_COME}: the first device to move the mouse keeps the focus until it disconnects or yields it;
+ * - {@link #MOST_RECENT}: the device which has most recently moved the mouse or clicked takes the focus;
+ * - {@link #BLEND}: the headings of all devices are added together, and any of them may click.
+ *
+ * Regardless of the policy, a device may explicitly take or yield the focus by sending a focus packet.
+ * Deciding whether a sample may pass is a single volatile read in the common case, and a single
+ * compare-and-set when the focus changes hands. Blending keeps a running sum of the headings, which each sample
+ * updates by the change of its device's heading, in constant time under a short lock. The sum is passed along
+ * outside the lock, by one thread at a time, which keeps passing it along until it has passed the newest one, so
+ * the samples of the other devices do not wait for it, and a newer sum is never overwritten by an older one.
+ * A device which has not set its heading for {@link MouseMoverThread#IDLE_TIMEOUT} is dropped from the sum on the
+ * next poll of its session, see {@link Device#expire(long)}, so a device which stops streaming does not keep the
+ * mouse drifting.
+ *
+ * @author RoliSoft
+ */
+public class PointerArbiter {
+
+    /**
+     * The first device to move the mouse keeps the focus until it disconnects or yields it.
+     */
+    public static final int FIRST_COME = 0;
+
+    /**
+     * The device which has most recently moved the mouse or clicked takes the focus.
+     */
+    public static final int MOST_RECENT = 1;
+
+    /**
+     * The headings of all devices are added together, and any of them may click.
+     */
+    public static final int BLEND = 2;
+
+    /**
+     * Represents a device whose heading and clicks go through the arbiter.
+     */
+    public class Device {
+
+        private double _x, _y;
+        private long _time;
+
+        /**
+         * Initializes the current instance.
+         */
+        private Device() {
+
+        }
+
+        /**
+         * Sets the heading of the mouse, if this device has the focus, or adds it to the
+         * headings of the other devices, if they are blended.
+         *
+         * @param x The X value of the coordinate to start navigating to.
+         * @param y The Y value of the coordinate to start navigating to.
+         */
+        public void setHeading(double x, double y) {
+            submit(this, x, y);
+        }
+
+        /**
+         * Decides whether this device may click. Under the {@link #MOST_RECENT} policy, clicking takes the focus.
+         *
+         * @return Value indicating whether the click may be performed.
+         */
+        public boolean activate() {
+            return PointerArbiter.this.activate(this);
+        }
+
+        /**
+         * Gets a value indicating whether this device currently controls the mouse.
+         *
+         * @return Value indicating whether this device has the focus.
+         */
+        public boolean hasFocus() {
+            Device owner = _owner.get();
+            return _policy == BLEND || owner == null || owner == this;
+        }
+
+        /**
+         * Drops the heading of this device from the blend, if it has not been set for
+         * {@link MouseMoverThread#IDLE_TIMEOUT}. This is called periodically by the session of the device.
+         *
+         * @param now The current time, as returned by {@see System#nanoTime()}.
+         */
+        public void expire(long now) {
+            PointerArbiter.this.expire(this, now);
+        }
+
+        /**
+         * Takes the focus from the device which currently has it, regardless of the policy.
+         */
+        public void requestFocus() {
+            _owner.set(this);
+        }
+
+        /**
+         * Gives up the focus, if this device has it, and stops its movement.
+         * This has to be called when the device disconnects, otherwise the focus would be held forever.
+         */
+        public void yieldFocus() {
+            release(this);
+        }
+
+    }
+
+    private volatile int _policy;
+    private final AtomicReference<Device> _owner;
+    private final AtomicBoolean _publishing;
+    private volatile long _version;
+    private double _sumX, _sumY;
+    private int _moving;
+
+    /**
+     * Initializes the current instance.
+     * The policy is {@link #MOST_RECENT}, unless the "airmouse.arbitration" system property is set to "first"
+     * or "blend".
+     */
+    public PointerArbiter() {
+        _owner = new AtomicReference<>();
+        _publishing = new AtomicBoolean();
+
+        String policy = System.getProperty("airmouse.arbitration");
+
+        if ("first".equalsIgnoreCase(policy)) {
+            _policy = FIRST_COME;
+        } else if ("blend".equalsIgnoreCase(policy)) {
+            _policy = BLEND;
+        } else {
+            _policy = MOST_RECENT;
+        }
+    }
+
+    /**
+     * Gets the arbitration policy.
+     *
+     * @return {@link #FIRST_COME}, {@link #MOST_RECENT} or {@link #BLEND}.
+     */
+    public int getPolicy() {
+        return _policy;
+    }
+
+    /**
+     * Sets the arbitration policy. The device which has the focus keeps it.
+     *
+     * @param policy {@link #FIRST_COME}, {@link #MOST_RECENT} or {@link #BLEND}.
+     */
+    public void setPolicy(int policy) {
+        if (policy != FIRST_COME && policy != MOST_RECENT && policy != BLEND) {
+            throw new IllegalArgumentException("Unsupported arbitration policy: " + policy);
+        }
+
+        _policy = policy;
+    }
+
+    /**
+     * Creates a new device whose heading and clicks go through this arbiter.
+     *
+     * @return A new device instance.
+     */
+    public Device createDevice() {
+        return new Device();
+    }
+
+    /**
+     * Gets the device which currently has the focus.
+     *
+     * @return Device with the focus, or null if none of them have it.
+     */
+    public Device getFocusedDevice() {
+        return _owner.get();
+    }
+
+    /**
+     * Decides whether the heading of the specified device may pass, and passes it to the {@see MouseHandler}.
+     * A heading of zero does not take the focus, so a device held still does not interrupt the others.
+     *
+     * @param device The device which sets the heading.
+     * @param x      The X value of the heading.
+     * @param y      The Y value of the heading.
+     */
+    private void submit(Device device, double x, double y) {
+        if (_policy == BLEND) {
+            synchronized (this) {
+                blend(device, x, y);
+                device._time = System.nanoTime();
+            }
+
+            publish();
+            return;
+        }
+
+        if (x != 0 || y != 0 ? !activate(device) : !device.hasFocus()) {
+            return;
+        }
+
+        MouseHandler.setHeading(x, y);
+    }
+
+    /**
+     * Decides whether the specified device may act, taking the focus if the policy allows it.
+     *
+     * @param device The device which is about to act.
+     *
+     * @return Value indicating whether the device has the focus.
+     */
+    private boolean activate(Device device) {
+        Device owner = _owner.get();
+
+        if (owner == device || _policy == BLEND) {
+            return true;
+        }
+
+        if (owner != null && _policy != MOST_RECENT) {
+            return false;
+        }
+
+        return _owner.compareAndSet(owner, device);
+    }
+
+    /**
+     * Removes the specified device from the arbitration: gives up its focus, or removes its heading from the blend.
+     *
+     * @param device The device to release.
+     */
+    private void release(Device device) {
+        synchronized (this) {
+            blend(device, 0, 0);
+        }
+
+        if (_policy == BLEND && MouseHandler.isRunning()) {
+            publish();
+        }
+
+        boolean released = _owner.compareAndSet(device, null);
+
+        if (released && _policy != BLEND && MouseHandler.isRunning()) {
+            MouseHandler.setHeading(0, 0);
+        }
+    }
+
+    /**
+     * Drops the heading of the specified device from the blend, if it has not been set for
+     * {@link MouseMoverThread#IDLE_TIMEOUT}, and passes the new sum along.
+     *
+     * @param device The device to check.
+     * @param now    The current time, as returned by {@see System#nanoTime()}.
+     */
+    private void expire(Device device, long now) {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(MouseMoverThread.IDLE_TIMEOUT);
+
+        synchronized (this) {
+            if (device._x == 0 && device._y == 0 || now - device._time <= timeout) {
+                return;
+            }
+
+            blend(device, 0, 0);
+        }
+
+        if (_policy == BLEND) {
+            publish();
+        }
+    }
+
+    /**
+     * Replaces the heading of the specified device in the running sum. When no device is moving, the sum is reset
+     * to exactly zero, so that the rounding errors of the updates do not keep the mouse drifting. Only called
+     * holding the lock.
+     *
+     * @param device The device which sets the heading.
+     * @param x      The X value of the heading.
+     * @param y      The Y value of the heading.
+     */
+    private void blend(Device device, double x, double y) {
+        boolean was = device._x != 0 || device._y != 0;
+        boolean moving = x != 0 || y != 0;
+
+        if (moving && !was) {
+            _moving++;
+        } else if (was && !moving) {
+            _moving--;
+        }
+
+        if (_moving == 0) {
+            _sumX = _sumY = 0;
+        } else {
+            _sumX += x - device._x;
+            _sumY += y - device._y;
+        }
+
+        device._x = x;
+        device._y = y;
+        _version++;
+    }
+
+    /**
+     * Passes the running sum of the headings to the {@see MouseHandler}. Only one thread passes it along at a time,
+     * and keeps doing so until the sum it has passed is the newest one; the others return right away, since the
+     * sum they have updated is passed along by that thread.
+     */
+    private void publish() {
+        while (_publishing.compareAndSet(false, true)) {
+            long published;
+
+            try {
+                do {
+                    double x, y;
+
+                    synchronized (this) {
+                        published = _version;
+                        x = _sumX;
+                        y = _sumY;
+                    }
+
+                    MouseHandler.setHeading(x, y);
+                } while (published != _version);
+            } finally {
+                _publishing.set(false);
+            }
+
+            // A sum updated after the check above, but before the flag was cleared, was left to this thread.
+            if (published == _version) {
+                return;
+            }
+        }
+    }
+
+}
@@ -3,19 +3,46 @@ import java.io.IOException;
 /**
  * Represents a protocol which handles all data in and out of the TCP stream.
  *
+ * Protocols never block: they consume the bytes which are available in the receive buffer of the session,
+ * and report when a packet is incomplete, so that the server can wait for more bytes to arrive.
+ *
  * @author RoliSoft
  */
 public abstract class Protocol {
 
-    private TcpServer _server;
+    /**
+     * A packet was processed, and the next one may be read.
+     */
+    public static final int CONTINUE = 1;
+
+    /**
+     * The next packet was not yet fully received.
+     */
+    public static final int INCOMPLETE = 0;
+
+    /**
+     * The client has finished the session.
+     */
+    public static final int CLOSE = -1;
+
+    private Session _session;
 
     /**
      * Initializes the current instance.
      *
-     * @param server The server on which this protocol is spoken.
+     * @param session The session in which this protocol is spoken.
      */
-    public Protocol(TcpServer server) {
-        _server = server;
+    public Protocol(Session session) {
+        _session = session;
+    }
+
+    /**
+     * Gets the session this protocol is associated to.
+     *
+     * @return Associated session instance.
+     */
+    public Session getSession() {
+        return _session;
     }
 
     /**
@@ -24,24 +51,148 @@ public abstract class Protocol {
      * @return Associated server instance.
      */
     public TcpServer getServer() {
-        return _server;
+        return _session.getServer();
     }
 
     /**
      * Initiates a handshake with the client.
+     * During the handshake, the client may request a different protocol to be spoken for the rest of the session.
+     *
+     * @return The protocol to continue the session with: this instance, or the one requested by the client;
+     *         or null if the handshake was not yet fully received.
      *
      * @throws IOException Occurs when handshake or stream is invalid.
      */
-    public abstract void handshake() throws IOException;
+    public abstract Protocol handshake() throws IOException;
 
 
     /**
      * Reads the next packet from the stream and processes it.
      *
-     * @return Value indicating whether to continue reading.
+     * @return {@link #CONTINUE}, {@link #INCOMPLETE} or {@link #CLOSE}.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    public abstract int readNext() throws IOException;
+
+    /**
+     * Sends a ping to the client, which the client is expected to answer with a pong,
+     * in order to measure the round-trip time and the offset of its clock.
+     * Clients which have not negotiated a protocol version during the handshake are not pinged.
+     *
+     * @param time The server time in microseconds, which the client has to echo.
+     *
+     * @return Value indicating whether the ping was sent.
      *
      * @throws IOException Occurs when the stream becomes invalid.
      */
-    public abstract boolean readNext() throws IOException;
+    public boolean sendPing(long time) throws IOException {
+        return false;
+    }
+
+    /**
+     * Opens an out-of-band data session for the client on the {@see UdpDataServer}, if it is running.
+     *
+     * @return The session token, or zero if the UDP data server is not available.
+     */
+    protected long openDataSession() {
+        UdpDataServer data = getServer().getServerManager().getDataServer();
+
+        if (data == null || data.getPort() == -1) {
+            return 0;
+        }
+
+        return data.open(_session);
+    }
+
+    /**
+     * Gets the port of the {@see UdpDataServer}.
+     *
+     * @return Port of the UDP data server or -1.
+     */
+    protected int getDataPort() {
+        UdpDataServer data = getServer().getServerManager().getDataServer();
+        return data != null ? data.getPort() : -1;
+    }
+
+    /**
+     * Notifies the session that the client has connected.
+     *
+     * @param name The name of the connecting device.
+     * @param type The type of the sensor which the client initially offers.
+     */
+    protected void fireClientConnected(String name, int type) {
+        _session.clientConnected(name, type, 0);
+    }
+
+    /**
+     * Notifies the session that the client has connected, and wants to resume a lost session.
+     *
+     * @param name   The name of the connecting device.
+     * @param type   The type of the sensor which the client initially offers.
+     * @param resume The resume token of the lost session, or zero to start a new one.
+     */
+    protected void fireClientConnected(String name, int type, long resume) {
+        _session.clientConnected(name, type, resume);
+    }
+
+    /**
+     * Passes sensor data along to the session through its coalescer,
+     * which may replace it with a newer sample if the reader is behind.
+     *
+     * @param data Sensor data, which is copied, therefore the array may be reused after the call.
+     */
+    protected void fireSensorDataReceived(double[] data) {
+        _session.getCoalescer().offer(data);
+    }
+
+    /**
+     * Notifies the session that the sensor type has changed.
+     * Any pending sensor data is passed along first.
+     *
+     * @param type Sensor ID to continue processing the data.
+     */
+    protected void fireSensorChangeReceived(int type) {
+        _session.sensorChangeReceived(type);
+    }
+
+    /**
+     * Notifies the session that a sensor recalibration was requested.
+     * Any pending sensor data is passed along first.
+     */
+    protected void fireSensorRecalibrateRequest() {
+        _session.sensorRecalibrateRequest();
+    }
+
+    /**
+     * Notifies the session that a click was requested.
+     * Any pending sensor data is passed along first.
+     *
+     * @param release Value indicating whether this is a click finish or a new click.
+     */
+    protected void fireClickRequested(boolean release) {
+        _session.clickRequested(release);
+    }
+
+    /**
+     * Notifies the session that the client has answered a ping.
+     *
+     * @param sent     The server time when the ping was sent, as echoed by the client.
+     * @param received The client time when the ping was received.
+     * @param answered The client time when the answer was sent.
+     */
+    protected void firePongReceived(long sent, long received, long answered) {
+        _session.pongReceived(sent, received, answered);
+    }
+
+    /**
+     * Notifies the session that the client wants to take or give up the control of the mouse.
+     * Any pending sensor data is passed along first.
+     *
+     * @param take Value indicating whether the focus is taken or given up.
+     */
+    protected void fireFocusRequested(boolean take) {
+        _session.focusRequested(take);
+    }
 
 }
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps track of the protocols which can be spoken on the TCP server, and detects which one a newly
+ * connected client is speaking, based on the first bytes it sent.
+ *
+ * Detection does not consume anything: the registered protocols peek into the receive buffer of the session,
+ * and the chosen protocol will then start reading from the very same buffer, from the very first byte.
+ *
+ * @author RoliSoft
+ */
+public class ProtocolRegistry {
+
+    /**
+     * The received bytes belong to the protocol.
+     */
+    public static final int MATCH = 1;
+
+    /**
+     * The received bytes do not belong to the protocol.
+     */
+    public static final int MISMATCH = 0;
+
+    /**
+     * More bytes are required to decide whether they belong to the protocol.
+     */
+    public static final int UNDECIDED = -1;
+
+    /**
+     * Represents a protocol which can be detected and instantiated by the registry.
+     */
+    public interface Entry {
+
+        /**
+         * Peeks into the receive buffer to decide whether the client speaks this protocol.
+         * Implementations must not change the position or limit of the buffer.
+         *
+         * @param buf The receive buffer, holding at least one byte.
+         *
+         * @return {@link #MATCH}, {@link #MISMATCH} or {@link #UNDECIDED}.
+         */
+        public int detect(ByteBuffer buf);
+
+        /**
+         * Gets the version token of the protocol, which the client may use to select it.
+         *
+         * @return Version token.
+         */
+        public String getVersion();
+
+        /**
+         * Initiates a new instance of the protocol.
+         *
+         * @param session The session in which the protocol is spoken.
+         *
+         * @return A new protocol instance.
+         */
+        public Protocol create(Session session);
+
+    }
+
+    private ArrayList<Entry> _entries;
+
+    /**
+     * Initializes the current instance without any protocols.
+     */
+    public ProtocolRegistry() {
+        _entries = new ArrayList<>();
+    }
+
+    /**
+     * Initializes a new instance with the protocols implemented by the server, with the plain-text
+     * protocol being the fallback.
+     *
+     * @return A new registry instance.
+     */
+    public static ProtocolRegistry createDefault() {
+        ProtocolRegistry registry = new ProtocolRegistry();
+
+        registry.register(new Entry() {
+            @Override
+            public int detect(ByteBuffer buf) {
+                return PlainTextProtocol.detect(buf);
+            }
+
+            @Override
+            public String getVersion() {
+                return PlainTextProtocol.VERSION;
+            }
+
+            @Override
+            public Protocol create(Session session) {
+                return new PlainTextProtocol(session);
+            }
+        });
+
+        registry.register(new Entry() {
+            @Override
+            public int detect(ByteBuffer buf) {
+                return BinaryProtocol.detect(buf);
+            }
+
+            @Override
+            public String getVersion() {
+                return BinaryProtocol.VERSION;
+            }
+
+            @Override
+            public Protocol create(Session session) {
+                return new BinaryProtocol(session);
+            }
+        });
+
+        return registry;
+    }
+
+    /**
+     * Registers a new protocol. The first registered protocol is the fallback, which will be
+     * spoken when none of the registered protocols recognize the first bytes sent by the client.
+     *
+     * @param entry The protocol to register.
+     */
+    public void register(Entry entry) {
+        _entries.add(entry);
+    }
+
+    /**
+     * Gets the list of registered protocols.
+     *
+     * @return A list of registered protocols.
+     */
+    public ArrayList<Entry> getEntries() {
+        return _entries;
+    }
+
+    /**
+     * Gets the version tokens of the registered protocols, separated by commas.
+     *
+     * @return List of supported versions.
+     */
+    public String getVersions() {
+        StringBuilder versions = new StringBuilder();
+
+        for (Entry entry : _entries) {
+            if (versions.length() != 0) {
+                versions.append(',');
+            }
+
+            versions.append(entry.getVersion());
+        }
+
+        return versions.toString();
+    }
+
+    /**
+     * Decides whether one of the registered protocols recognizes the first bytes sent by the client,
+     * or all of them reject it, and instantiates the protocol to speak with the client.
+     *
+     * @param session The session in which the protocol is spoken.
+     *
+     * @return A new instance of the detected protocol, the fallback protocol,
+     *         or null if more bytes are required to decide.
+     *
+     * @throws IOException Occurs when the stream ends before a decision can be made, or no protocols are registered.
+     */
+    public Protocol detect(Session session) throws IOException {
+        if (_entries.isEmpty()) {
+            throw new IOException("No protocols are registered.");
+        }
+
+        ByteBuffer buf = session.getReadBuffer();
+
+        if (buf.hasRemaining()) {
+            boolean undecided = false;
+
+            for (Entry entry : _entries) {
+                int result = entry.detect(buf);
+
+                if (result == MATCH) {
+                    return entry.create(session);
+                }
+
+                if (result == UNDECIDED) {
+                    undecided = true;
+                }
+            }
+
+            if (!undecided) {
+                return _entries.get(0).create(session);
+            }
+        }
+
+        if (session.isEndOfStream()) {
+            throw new IOException("Handshake error, connection closed.");
+        }
+
+        return null;
+    }
+
+}
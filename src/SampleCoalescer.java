@@ -0,0 +1,113 @@
+/**
+ * Sits between the protocol and the session, and coalesces sensor data which has piled up on the socket.
+ *
+ * When the reader thread falls behind, for example due to a slow listener, the receive buffer fills with samples
+ * which are already stale. Passing them to the listeners one by one would replay the stale motion in a burst,
+ * therefore each sample only overwrites the pending one, and the pending sample is passed along once the reader
+ * has caught up with the socket, or right before any other packet, so the order of packets is kept.
+ *
+ * Samples which are tagged with different sensors, see {@link DataProcessorEngine#SENSOR}, do not replace each other,
+ * since a sensor-fusion engine needs the latest sample of each sensor, therefore each sensor has its own pending slot.
+ *
+ * @author RoliSoft
+ */
+public class SampleCoalescer {
+
+    private Session _session;
+    /**
+     * The number of pending slots: one for the untagged samples, and one for each sensor.
+     */
+    private static final int SLOTS = 3;
+
+    private final double[][] _pending = new double[SLOTS][DataProcessorEngine.SAMPLE_SIZE];
+    private final boolean[] _hasPending = new boolean[SLOTS];
+    private int _pendingCount;
+    private long _dropped;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param session The session to pass the sensor data along to.
+     */
+    public SampleCoalescer(Session session) {
+        _session = session;
+    }
+
+    /**
+     * Gets the number of samples which were replaced by a newer one before being passed along.
+     *
+     * @return Number of dropped samples.
+     */
+    public long getDroppedCount() {
+        return _dropped;
+    }
+
+    /**
+     * Queues a new sample, replacing the pending one of the same sensor, if any.
+     *
+     * @param data Sensor data, which is copied, therefore the array may be reused after the call.
+     */
+    public void offer(double[] data) {
+        int slot = data.length > DataProcessorEngine.SENSOR ? (int)data[DataProcessorEngine.SENSOR] : 0;
+
+        if (slot < 0 || slot >= SLOTS) {
+            slot = 0;
+        }
+
+        double[] pending = _pending[slot];
+
+        if (_hasPending[slot]) {
+            _dropped++;
+        } else {
+            _hasPending[slot] = true;
+            _pendingCount++;
+        }
+
+        int len = Math.min(data.length, pending.length);
+        System.arraycopy(data, 0, pending, 0, len);
+
+        for (int i = len; i < pending.length; i++) {
+            pending[i] = 0;
+        }
+    }
+
+    /**
+     * Moves the pending samples to the specified coalescer, without passing them along to the session.
+     * This is how samples queued by one thread are handed over to the thread which passes them along.
+     *
+     * @param target The coalescer to queue the pending samples in.
+     */
+    public void drainTo(SampleCoalescer target) {
+        if (_pendingCount == 0) {
+            return;
+        }
+
+        _pendingCount = 0;
+
+        for (int i = 0; i < SLOTS; i++) {
+            if (_hasPending[i]) {
+                _hasPending[i] = false;
+                target.offer(_pending[i]);
+            }
+        }
+    }
+
+    /**
+     * Passes the pending samples along to the session, if there are any.
+     */
+    public void flush() {
+        if (_pendingCount == 0) {
+            return;
+        }
+
+        _pendingCount = 0;
+
+        for (int i = 0; i < SLOTS; i++) {
+            if (_hasPending[i]) {
+                _hasPending[i] = false;
+                _session.dispatchSensorData(_pending[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents an abstract class to smooth the calibrated sensor values, before they are mapped to the speed of
+ * the mouse.
+ *
+ * Hand tremor and the noise of the sensors would otherwise show up as jitter of the cursor. Any smoothing delays the
+ * movements, therefore each filter reports the lag it currently adds, so that the parameters can be tuned knowingly:
+ *
+ * - {@link #NONE}: the values are passed through as they are;
+ * - {@link #ONE_EURO}: a low-pass filter whose cutoff rises with the speed, see {@see OneEuroFilter};
+ * - {@link #KALMAN}: a constant-velocity Kalman filter, see {@see KalmanFilter}.
+ *
+ * The filters work on the two axes used for moving the mouse, keep their state in primitive fields, and allocate
+ * nothing per sample. Filters can be described with a short specification, for example "oneeuro:1,0.05" or
+ * "kalman:50,0.1", see {@link #parse}. The filter of each engine type can be set with the
+ * "airmouse.filter.accelerometer", "airmouse.filter.gyroscope" and "airmouse.filter.fusion" system properties.
+ *
+ * @author RoliSoft
+ */
+public abstract class SensorFilter {
+
+    /**
+     * The values are passed through as they are.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * A low-pass filter whose cutoff rises with the speed.
+     */
+    public static final int ONE_EURO = 1;
+
+    /**
+     * A constant-velocity Kalman filter.
+     */
+    public static final int KALMAN = 2;
+
+    /**
+     * The number of axes which are filtered.
+     */
+    public static final int AXES = 2;
+
+    /**
+     * Filters the values of the axes in place.
+     *
+     * @param values The values of the axes, which are replaced by the filtered ones.
+     * @param dt     The number of seconds since the previous sample.
+     */
+    public abstract void filter(double[] values, double dt);
+
+    /**
+     * Forgets the previous samples, so that the next sample is passed through as it is.
+     */
+    public abstract void reset();
+
+    /**
+     * Gets the lag which the filter currently adds to the movements, the larger of the two axes.
+     *
+     * @return Lag in milliseconds.
+     */
+    public abstract double getLag();
+
+    /**
+     * Gets the type of the filter.
+     *
+     * @return {@link #NONE}, {@link #ONE_EURO} or {@link #KALMAN}.
+     */
+    public abstract int getType();
+
+    /**
+     * Creates a filter which passes the values through as they are.
+     *
+     * @return A new filter instance.
+     */
+    public static SensorFilter none() {
+        return new SensorFilter() {
+            @Override
+            public void filter(double[] values, double dt) {
+
+            }
+
+            @Override
+            public void reset() {
+
+            }
+
+            @Override
+            public double getLag() {
+                return 0;
+            }
+
+            @Override
+            public int getType() {
+                return NONE;
+            }
+
+            @Override
+            public String toString() {
+                return "none";
+            }
+        };
+    }
+
+    /**
+     * Creates a filter from its specification: the type of the filter, followed by a colon and its arguments,
+     * separated by commas, in the same order as the parameters of the constructors. Trailing arguments are optional.
+     *
+     * @param spec The specification of the filter, for example "oneeuro:1,0.05".
+     *
+     * @return A new filter instance.
+     *
+     * @throws IllegalArgumentException This exception is thrown if the specification is not valid.
+     */
+    public static SensorFilter parse(String spec) throws IllegalArgumentException {
+        int idx = spec.indexOf(':');
+        String type = (idx == -1 ? spec : spec.substring(0, idx)).trim().toLowerCase();
+        String[] args = idx == -1 || spec.substring(idx + 1).trim().isEmpty() ? new String[0] : spec.substring(idx + 1).split(",");
+        double[] params = new double[args.length];
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                params[i] = Double.parseDouble(args[i].trim());
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number in filter: " + spec, ex);
+        }
+
+        switch (type) {
+            case "none":
+                expect(spec, params, 0);
+                return none();
+
+            case "oneeuro":
+                expect(spec, params, 3);
+                return new OneEuroFilter(param(params, 0, OneEuroFilter.DEFAULT_MIN_CUTOFF), param(params, 1, OneEuroFilter.DEFAULT_BETA), param(params, 2, OneEuroFilter.DEFAULT_DERIVATIVE_CUTOFF));
+
+            case "kalman":
+                expect(spec, params, 2);
+                return new KalmanFilter(param(params, 0, KalmanFilter.DEFAULT_PROCESS_NOISE), param(params, 1, KalmanFilter.DEFAULT_MEASUREMENT_NOISE));
+
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + spec);
+        }
+    }
+
+    /**
+     * Creates the filter of the specified engine type, as set in the "airmouse.filter.{type}" system property,
+     * see {@see DataProcessorEngine#getTypeName}, or a filter which passes the values through, if it is not set.
+     * An invalid specification is logged, and no filtering is done.
+     *
+     * @param type {@link DataProcessorEngine#ACCELEROMETER}, {@link DataProcessorEngine#GYROSCOPE} or
+     *             {@link DataProcessorEngine#FUSION}.
+     *
+     * @return A new filter instance.
+     */
+    public static SensorFilter forType(int type) {
+        String spec = System.getProperty("airmouse.filter." + DataProcessorEngine.getTypeName(type));
+
+        if (spec == null) {
+            return none();
+        }
+
+        try {
+            return parse(spec);
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid filter, using none", ex);
+            return none();
+        }
+    }
+
+    /**
+     * Limits the time between two samples to a sane range, since the first sample after a pause would otherwise
+     * look like a very slow movement, and two samples which were coalesced would look infinitely fast.
+     *
+     * @param dt The number of seconds since the previous sample.
+     *
+     * @return The number of seconds between 0.1 and 100 milliseconds.
+     */
+    protected static double clamp(double dt) {
+        return dt < 0.0001 ? 0.0001 : dt > 0.1 ? 0.1 : dt;
+    }
+
+    /**
+     * Gets an optional argument of a specification.
+     *
+     * @param params The arguments.
+     * @param index  The index of the argument.
+     * @param def    The default value of the argument.
+     *
+     * @return The argument, or its default value, if it was not specified.
+     */
+    private static double param(double[] params, int index, double def) {
+        return index < params.length ? params[index] : def;
+    }
+
+    /**
+     * Verifies the number of arguments in a specification.
+     *
+     * @param spec   The specification of the filter.
+     * @param params The arguments of the filter.
+     * @param max    The maximum number of arguments.
+     *
+     * @throws IllegalArgumentException This exception is thrown if there are too many arguments.
+     */
+    private static void expect(String spec, double[] params, int max) throws IllegalArgumentException {
+        if (params.length > max) {
+            throw new IllegalArgumentException("Too many arguments in filter: " + spec);
+        }
+    }
+
+}
@@ -0,0 +1,426 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the samples of an engine in a fixed series of small stages, which are shared by all engine types:
+ *
+ * - calibrate: the first sample after a recalibration is taken as the zero point, and subtracted from the rest,
+ *   and for the gyroscope, the zero point keeps following the bias of the sensor while the device is still;
+ * - deadzone: values smaller than a threshold are zeroed, so that a device held still does not move the mouse;
+ * - scale: the axes are multiplied by constant factors, which also flip their signs to match the screen;
+ * - filter: the jitter is smoothed by a {@see SensorFilter};
+ * - curve: the values are mapped to the speed of the mouse by a {@see TransferFunction}.
+ *
+ * The result is passed to the sink, which is the engine setting the heading. The order of the stages is fixed, and
+ * a stage which is disabled by its configuration is a no-op. The calibration, the deadzone and the scale are final
+ * classes held in final fields, so their calls are monomorphic, and can be inlined by the JIT; the filter and the
+ * curve can be replaced while samples are being processed, see {@link #setFilter(SensorFilter)}, and are called
+ * through their classes.
+ *
+ * The deadzone is applied to the calibrated values of the sensor, before they are scaled, filtered and mapped by the
+ * curve, so its threshold is in the units of the sensor. Before the stages were shared, the engines applied it last,
+ * to the speed of the mouse in pixels per move. The default thresholds were kept, so with a curve which is not the
+ * identity, the movements which are zeroed by default differ: the small ones as registered by the sensor, instead
+ * of the ones which the curve turns into less than a pixel per move.
+ *
+ * The stages of each engine type are configured with system properties, where {type} is "accelerometer",
+ * "gyroscope" or "fusion": "airmouse.calibrate.{type}" is true or false,
+ * "airmouse.bias.{type}" is the standard deviation below which the device is still and the time constant with which
+ * the zero point follows the bias, separated by a comma, or "off", "airmouse.deadzone.{type}" is the threshold,
+ * "airmouse.scale.{type}" is the factors of the two axes separated by a comma, and the filter and the curve are
+ * set as documented by their classes.
+ *
+ * @author RoliSoft
+ */
+public class SensorPipeline {
+
+    /**
+     * Takes the first sample as the zero point, and subtracts it from the rest. Optionally, the zero point keeps
+     * following the bias of the sensor: whenever the device is held still, which is told by the variance of the
+     * recent samples staying below a threshold, the zero point is pulled towards their mean.
+     */
+    public static final class Calibration {
+
+        /**
+         * The time constant in seconds of the moving mean and variance which tell whether the device is still.
+         */
+        private static final double WINDOW = 0.25;
+
+        /**
+         * The number of seconds the device has to be still before the zero point starts following the mean,
+         * so that the beginning or the end of a slow movement is not mistaken for the bias.
+         */
+        private static final double SETTLE_TIME = 0.5;
+
+        private final boolean _enabled;
+        private final double _threshold;
+        private final double _timeConstant;
+        private double _x, _y;
+        private boolean _calibrated;
+        private double _meanX, _meanY;
+        private double _varX, _varY;
+        private double _stillTime;
+        private long _lastTime;
+
+        /**
+         * Initializes the current instance, with a fixed zero point.
+         *
+         * @param enabled Value indicating whether the samples are calibrated.
+         */
+        public Calibration(boolean enabled) {
+            this(enabled, 0, 0);
+        }
+
+        /**
+         * Initializes the current instance, with a zero point which follows the bias of the sensor.
+         *
+         * @param enabled      Value indicating whether the samples are calibrated.
+         * @param threshold    The standard deviation of the axes below which the device is considered still,
+         *                     or zero to keep the zero point fixed.
+         * @param timeConstant The time constant in seconds with which the zero point follows the bias.
+         */
+        public Calibration(boolean enabled, double threshold, double timeConstant) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("The threshold cannot be negative.");
+            }
+
+            if (threshold > 0 && !(timeConstant > 0)) {
+                throw new IllegalArgumentException("The time constant has to be positive.");
+            }
+
+            _enabled = enabled;
+            _threshold = threshold;
+            _timeConstant = timeConstant;
+        }
+
+        /**
+         * Gets a value indicating whether the device has been still for long enough to follow the bias.
+         *
+         * @return Value indicating whether the zero point is currently being updated.
+         */
+        public boolean isStill() {
+            return _stillTime >= SETTLE_TIME;
+        }
+
+        /**
+         * Subtracts the zero point from the sample, or takes the sample as the zero point, if there is none.
+         * If the bias is followed, the zero point is updated first.
+         *
+         * @param sample The sample to process.
+         *
+         * @return Value indicating whether the sample should be processed further.
+         */
+        public boolean apply(SensorSample sample) {
+            if (!_enabled) {
+                return true;
+            }
+
+            if (!_calibrated) {
+                _x = _meanX = sample.x;
+                _y = _meanY = sample.y;
+                _varX = _varY = 0;
+                _stillTime = 0;
+                _lastTime = sample.time;
+                _calibrated = true;
+                return false;
+            }
+
+            if (_threshold > 0) {
+                track(sample);
+            }
+
+            sample.x -= _x;
+            sample.y -= _y;
+            return true;
+        }
+
+        /**
+         * Forgets the zero point, so that the next sample is taken as the new one.
+         */
+        public void reset() {
+            _calibrated = false;
+        }
+
+        /**
+         * Updates the moving mean and variance with the sample, and while the device is still,
+         * pulls the zero point towards the mean.
+         *
+         * @param sample The sample to process.
+         */
+        private void track(SensorSample sample) {
+            double dt = SensorFilter.clamp((sample.time - _lastTime) / 1e9);
+            double a = dt / (WINDOW + dt);
+            double dx = sample.x - _meanX;
+            double dy = sample.y - _meanY;
+
+            _lastTime = sample.time;
+            _meanX += a * dx;
+            _meanY += a * dy;
+            _varX = (1 - a) * (_varX + a * dx * dx);
+            _varY = (1 - a) * (_varY + a * dy * dy);
+
+            if (_varX + _varY >= _threshold * _threshold) {
+                _stillTime = 0;
+                return;
+            }
+
+            _stillTime += dt;
+
+            if (_stillTime >= SETTLE_TIME) {
+                double k = dt / (_timeConstant + dt);
+
+                _x += (_meanX - _x) * k;
+                _y += (_meanY - _y) * k;
+            }
+        }
+
+    }
+
+    /**
+     * Zeroes the axes whose values are smaller than a threshold.
+     */
+    public static final class Deadzone {
+
+        private final double _threshold;
+
+        /**
+         * Initializes the current instance.
+         *
+         * @param threshold The absolute value below which the axes are zeroed, or zero to disable the stage.
+         */
+        public Deadzone(double threshold) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("The deadzone cannot be negative.");
+            }
+
+            _threshold = threshold;
+        }
+
+        /**
+         * Zeroes the axes of the sample which are within the deadzone.
+         *
+         * @param sample The sample to process.
+         */
+        public void apply(SensorSample sample) {
+            if (sample.x < _threshold && sample.x > -_threshold) {
+                sample.x = 0;
+            }
+
+            if (sample.y < _threshold && sample.y > -_threshold) {
+                sample.y = 0;
+            }
+        }
+
+    }
+
+    /**
+     * Multiplies the axes by constant factors.
+     */
+    public static final class Scale {
+
+        private final double _x, _y;
+
+        /**
+         * Initializes the current instance.
+         *
+         * @param x The factor of the X axis.
+         * @param y The factor of the Y axis.
+         */
+        public Scale(double x, double y) {
+            _x = x;
+            _y = y;
+        }
+
+        /**
+         * Multiplies the axes of the sample by the factors.
+         *
+         * @param sample The sample to process.
+         */
+        public void apply(SensorSample sample) {
+            sample.x *= _x;
+            sample.y *= _y;
+        }
+
+    }
+
+    private final Calibration _calibration;
+    private final Deadzone _deadzone;
+    private final Scale _scale;
+    private final double[] _values;
+    private volatile SensorFilter _filter;
+    private volatile TransferFunction _curve;
+    private long _lastTime;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param calibration The calibration stage.
+     * @param deadzone    The deadzone stage.
+     * @param scale       The scale stage.
+     * @param filter      The filter of the filter stage.
+     * @param curve       The curve of the curve stage.
+     */
+    public SensorPipeline(Calibration calibration, Deadzone deadzone, Scale scale, SensorFilter filter, TransferFunction curve) {
+        _calibration = calibration;
+        _deadzone    = deadzone;
+        _scale       = scale;
+        _values      = new double[SensorFilter.AXES];
+
+        setFilter(filter);
+        setTransferFunction(curve);
+    }
+
+    /**
+     * Creates the pipeline of the specified engine type, as configured by the system properties. The defaults are
+     * calibration, which follows the bias of the gyroscope when its standard deviation is below 0.05 with a time
+     * constant of 2 seconds, a deadzone of 0.1 for the gyroscope and 1 for the others, and flipping the X axis.
+     * Each setting is parsed on its own, and an invalid one is logged, and its default is used instead,
+     * without affecting the others.
+     *
+     * @param type {@link DataProcessorEngine#ACCELEROMETER}, {@link DataProcessorEngine#GYROSCOPE} or
+     *             {@link DataProcessorEngine#FUSION}.
+     *
+     * @return A new pipeline instance.
+     */
+    public static SensorPipeline forType(int type) {
+        String name = DataProcessorEngine.getTypeName(type);
+
+        boolean calibrate = !"false".equalsIgnoreCase(System.getProperty("airmouse.calibrate." + name));
+        Calibration calibration = type == DataProcessorEngine.GYROSCOPE ? new Calibration(calibrate, 0.05, 2) : new Calibration(calibrate);
+        Deadzone deadzone = new Deadzone(type == DataProcessorEngine.GYROSCOPE ? 0.1 : 1);
+        Scale scale = new Scale(-1, 1);
+
+        String spec = System.getProperty("airmouse.bias." + name);
+
+        if (spec != null) {
+            try {
+                String[] params = spec.split(",");
+
+                if ("off".equalsIgnoreCase(spec.trim())) {
+                    calibration = new Calibration(calibrate);
+                } else if (params.length == 2) {
+                    calibration = new Calibration(calibrate, Double.parseDouble(params[0].trim()), Double.parseDouble(params[1].trim()));
+                } else {
+                    throw new IllegalArgumentException("The bias tracking should be a threshold and a time constant separated by a comma: " + spec);
+                }
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid bias tracking: " + spec, ex);
+            }
+        }
+
+        spec = System.getProperty("airmouse.deadzone." + name);
+
+        if (spec != null) {
+            try {
+                deadzone = new Deadzone(Double.parseDouble(spec.trim()));
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid deadzone: " + spec, ex);
+            }
+        }
+
+        spec = System.getProperty("airmouse.scale." + name);
+
+        if (spec != null) {
+            try {
+                String[] factors = spec.split(",");
+
+                if (factors.length != 2) {
+                    throw new IllegalArgumentException("The scale should be two factors separated by a comma: " + spec);
+                }
+
+                scale = new Scale(Double.parseDouble(factors[0].trim()), Double.parseDouble(factors[1].trim()));
+            } catch (IllegalArgumentException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid scale: " + spec, ex);
+            }
+        }
+
+        return new SensorPipeline(calibration, deadzone, scale, SensorFilter.forType(type), TransferFunction.forType(type));
+    }
+
+    /**
+     * Gets the filter of the filter stage.
+     *
+     * @return Sensor filter.
+     */
+    public SensorFilter getFilter() {
+        return _filter;
+    }
+
+    /**
+     * Sets the filter of the filter stage. This can be called from any thread, while samples are being processed;
+     * the new filter is used from the next sample.
+     *
+     * @param filter Sensor filter.
+     */
+    public void setFilter(SensorFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("The filter cannot be null.");
+        }
+
+        _filter = filter;
+    }
+
+    /**
+     * Gets the curve of the curve stage.
+     *
+     * @return Transfer function.
+     */
+    public TransferFunction getTransferFunction() {
+        return _curve;
+    }
+
+    /**
+     * Sets the curve of the curve stage. This can be called from any thread, while samples are being processed;
+     * the new curve is used from the next sample, for both of its axes.
+     *
+     * @param curve Transfer function.
+     */
+    public void setTransferFunction(TransferFunction curve) {
+        if (curve == null) {
+            throw new IllegalArgumentException("The transfer function cannot be null.");
+        }
+
+        _curve = curve;
+    }
+
+    /**
+     * Passes the sample through the stages in place.
+     *
+     * @param sample The sample to process.
+     *
+     * @return Value indicating whether the sample should be passed to the sink, which is not the case
+     *         when it was taken as the zero point.
+     */
+    public boolean process(SensorSample sample) {
+        if (!_calibration.apply(sample)) {
+            _lastTime = sample.time;
+            return false;
+        }
+
+        _deadzone.apply(sample);
+        _scale.apply(sample);
+
+        _values[0] = sample.x;
+        _values[1] = sample.y;
+
+        TransferFunction curve = _curve;
+
+        _filter.filter(_values, _lastTime == 0 ? 0 : (sample.time - _lastTime) / 1e9);
+        _lastTime = sample.time;
+
+        sample.x = curve.apply(_values[0]);
+        sample.y = curve.apply(_values[1]);
+
+        return true;
+    }
+
+    /**
+     * Resets the stages which keep a state: forgets the zero point and the previous samples of the filter.
+     */
+    public void reset() {
+        _calibration.reset();
+        _filter.reset();
+        _lastTime = 0;
+    }
+
+}
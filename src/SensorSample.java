@@ -0,0 +1,45 @@
+/**
+ * Holds a single sample while it passes through the stages of a {@see SensorPipeline}.
+ *
+ * Each engine reuses a single instance for all of its samples, and the stages modify its fields in place,
+ * therefore processing a sample allocates nothing. The fields are public for the same reason the stages are
+ * small: so that the whole pipeline is inlined into a few loads and stores.
+ *
+ * @author RoliSoft
+ */
+public final class SensorSample {
+
+    /**
+     * The value of the X axis.
+     */
+    public double x;
+
+    /**
+     * The value of the Y axis.
+     */
+    public double y;
+
+    /**
+     * The value of the Z axis, which the two-dimensional stages leave untouched.
+     */
+    public double z;
+
+    /**
+     * The time when the sample was received, as returned by {@see System#nanoTime()}.
+     */
+    public long time;
+
+    /**
+     * Sets the values of the sample.
+     *
+     * @param data The values of the axes received from the client, at least two of them.
+     * @param time The time when the sample was received, as returned by {@see System#nanoTime()}.
+     */
+    public void set(double[] data, long time) {
+        this.x = data[0];
+        this.y = data[1];
+        this.z = data.length > 2 ? data[2] : 0;
+        this.time = time;
+    }
+
+}
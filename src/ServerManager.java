@@ -1,5 +1,9 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Manages the TCP and UDP servers.
@@ -8,15 +12,203 @@ import java.util.ArrayList;
  */
 public class ServerManager {
 
+    /**
+     * Clients are served by a single platform thread using a non-blocking selector,
+     * and the UDP servers run on their own platform threads.
+     */
+    public static final int EXECUTION_SELECTOR = 0;
+
+    /**
+     * Each accepted client is served by its own virtual thread using blocking I/O,
+     * and the UDP servers run on virtual threads as well. Before Java 21, platform threads are used instead.
+     */
+    public static final int EXECUTION_VIRTUAL_THREADS = 1;
+
+    /**
+     * The maximum number of milliseconds to wait for a server thread to finish after it was interrupted.
+     */
+    private static final int STOP_TIMEOUT = 1000;
+
     private TcpServer _tcpServer;
     private UdpServer _udpServer;
+    private UdpDataServer _dataServer;
+    private MulticastAnnouncer _announcer;
     private ArrayList<ClientListener> _listeners;
+    private int _executionMode;
+    private int _resumeGrace;
+    private int _idleTimeout;
+    private SocketProfile _socketProfile;
 
     /**
      * Initializes the current instance.
+     * The execution mode is {@link #EXECUTION_SELECTOR}, unless the "airmouse.execution" system property is set
+     * to "virtual".
      */
     public ServerManager() {
         _listeners = new ArrayList<>();
+        _executionMode = "virtual".equalsIgnoreCase(System.getProperty("airmouse.execution")) ? EXECUTION_VIRTUAL_THREADS : EXECUTION_SELECTOR;
+        _resumeGrace = Integer.getInteger("airmouse.resume.grace", 10000);
+        _idleTimeout = Integer.getInteger("airmouse.idle.timeout", 6000);
+        _socketProfile = new SocketProfile();
+    }
+
+    /**
+     * Gets the options which are set on the sockets of the servers.
+     *
+     * @return Socket profile.
+     */
+    public SocketProfile getSocketProfile() {
+        return _socketProfile;
+    }
+
+    /**
+     * Sets the options which are set on the sockets of the servers. The new options take effect on the
+     * clients which connect afterwards, and on the listening sockets when the servers are next started.
+     *
+     * @param profile Socket profile.
+     */
+    public void setSocketProfile(SocketProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("The socket profile cannot be null.");
+        }
+
+        _socketProfile = profile;
+    }
+
+    /**
+     * Gets the number of milliseconds after which a client which has not sent anything is considered dead.
+     * Clients which answer the pings are heard from every {@link TcpServer#PING_INTERVAL}, even when not moving.
+     *
+     * @return Idle timeout, or zero if idle clients are never disconnected.
+     */
+    public int getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds after which a client which has not sent anything is considered dead.
+     * The "airmouse.idle.timeout" system property sets the initial value. The timeout is enforced at the
+     * granularity of {@link TcpServer#POLL_INTERVAL}, and should be a few times the {@link TcpServer#PING_INTERVAL}.
+     *
+     * @param timeout Idle timeout, or zero to never disconnect idle clients.
+     */
+    public void setIdleTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout cannot be negative.");
+        }
+
+        _idleTimeout = timeout;
+    }
+
+    /**
+     * Gets the number of milliseconds for which the session of a client is kept after its connection was lost,
+     * so that it can resume the session with its resume token, without a new handshake and recalibration.
+     *
+     * @return Grace period, or zero if sessions cannot be resumed.
+     */
+    public int getResumeGrace() {
+        return _resumeGrace;
+    }
+
+    /**
+     * Sets the number of milliseconds for which the session of a client is kept after its connection was lost.
+     * The "airmouse.resume.grace" system property sets the initial value.
+     *
+     * @param grace Grace period, or zero to disable resuming sessions.
+     */
+    public void setResumeGrace(int grace) {
+        if (grace < 0) {
+            throw new IllegalArgumentException("The grace period cannot be negative.");
+        }
+
+        _resumeGrace = grace;
+    }
+
+    /**
+     * Gets the execution mode of the servers.
+     *
+     * @return {@link #EXECUTION_SELECTOR} or {@link #EXECUTION_VIRTUAL_THREADS}.
+     */
+    public int getExecutionMode() {
+        return _executionMode;
+    }
+
+    /**
+     * Sets the execution mode of the servers. The new mode takes effect when the servers are next started.
+     *
+     * @param mode {@link #EXECUTION_SELECTOR} or {@link #EXECUTION_VIRTUAL_THREADS}.
+     */
+    public void setExecutionMode(int mode) {
+        if (mode != EXECUTION_SELECTOR && mode != EXECUTION_VIRTUAL_THREADS) {
+            throw new IllegalArgumentException("Unsupported execution mode: " + mode);
+        }
+
+        _executionMode = mode;
+    }
+
+    /**
+     * Creates a new, not yet started thread for one of the servers, according to the execution mode.
+     *
+     * @param name The name of the thread.
+     * @param task The task to run on the thread.
+     *
+     * @return A new virtual or platform thread.
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (_executionMode == EXECUTION_VIRTUAL_THREADS && isVirtualThreadSupported()) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+                builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+                return (Thread)builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+            } catch (ReflectiveOperationException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Failed to create a virtual thread, using a platform thread", ex);
+            }
+        }
+
+        return new Thread(task, name);
+    }
+
+    /**
+     * Gets a value indicating whether the running Java version supports virtual threads, which were introduced in
+     * Java 21. The sources are kept compatible with older versions, where {@link #EXECUTION_VIRTUAL_THREADS} serves
+     * each client with its own platform thread instead.
+     *
+     * @return Value indicating whether virtual threads are available.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Interrupts the specified server thread, and waits for it to finish. Blocking socket operations
+     * are aborted by the interruption, but a thread busy notifying a listener is only waited for a
+     * limited time, so that stopping the servers never hangs the caller.
+     *
+     * @param thread The thread to stop, which may be null.
+     */
+    public static void stopThread(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+
+        thread.interrupt();
+
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+
+        try {
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -29,7 +221,7 @@ public class ServerManager {
     }
 
     /**
-     * Gets a value indicating whether the TCP server has a connected client or not.
+     * Gets a value indicating whether the TCP server has any connected clients or not.
      *
      * @return Value indicating whether a client is connected.
      */
@@ -46,6 +238,52 @@ public class ServerManager {
         return _tcpServer != null ? _tcpServer.getPort() : -1;
     }
 
+    /**
+     * Gets the sessions of the currently connected clients.
+     *
+     * @return List of sessions, which is safe to iterate from any thread.
+     */
+    public List<Session> getSessions() {
+        return _tcpServer != null ? _tcpServer.getSessions() : Collections.<Session>emptyList();
+    }
+
+    /**
+     * Gets the number of samples of the connected clients which were dropped, because a newer
+     * sample was already received by the time they could have been processed.
+     *
+     * @return Number of dropped samples.
+     */
+    public long getDroppedSampleCount() {
+        return _tcpServer != null ? _tcpServer.getDroppedSampleCount() : 0;
+    }
+
+    /**
+     * Gets the UDP server which receives sensor data out-of-band, or null if the servers are not running.
+     *
+     * @return UDP data server or null.
+     */
+    public UdpDataServer getDataServer() {
+        return _dataServer;
+    }
+
+    /**
+     * Gets the multicast announcer of the server, or null if the servers are not running.
+     *
+     * @return Multicast announcer or null.
+     */
+    public MulticastAnnouncer getAnnouncer() {
+        return _announcer;
+    }
+
+    /**
+     * Gets the registry of protocols which can be spoken with the clients, or null if the servers are not running.
+     *
+     * @return Protocol registry or null.
+     */
+    public ProtocolRegistry getProtocolRegistry() {
+        return _tcpServer != null ? _tcpServer.getProtocolRegistry() : null;
+    }
+
     /**
      * Registers a new {@see ClientListener} on this instance.
      * When something happens, these registered instances will be notified in chronological order of their registration.
@@ -77,7 +315,8 @@ public class ServerManager {
     }
 
     /**
-     * Starts both the TCP and UDP server in the background asynchronously.
+     * Starts the TCP and UDP servers in the background asynchronously.
+     * If the servers are already running, they are stopped first, and their threads are waited for.
      *
      * @throws IOException Forwarded exception shall the servers fail to start.
      *                     Such issue may occur if two instances are running of the server,
@@ -88,13 +327,17 @@ public class ServerManager {
 
         _tcpServer = new TcpServer(this);
         _udpServer = new UdpServer(this);
+        _dataServer = new UdpDataServer(this);
+        _announcer = new MulticastAnnouncer(this, _udpServer.getInterfaceTable());
 
         _tcpServer.start();
         _udpServer.start();
+        _dataServer.start();
+        _announcer.start();
     }
 
     /**
-     * Stops both the TCP and UDP servers, if any of them are running.
+     * Stops the TCP and UDP servers, if any of them are running.
      * Please note, connected clients will be disconnected upon closing the bound sockets.
      */
     public void stop() {
@@ -105,10 +348,18 @@ public class ServerManager {
         if (_udpServer != null) {
             _udpServer.stop();
         }
+
+        if (_dataServer != null) {
+            _dataServer.stop();
+        }
+
+        if (_announcer != null) {
+            _announcer.stop();
+        }
     }
 
     /**
-     * Disconnects the currently connected client, if there is one.
+     * Disconnects the currently connected clients, if there are any.
      * The TCP server will continue to accept new clients at this point.
      */
     public void disconnect() {
@@ -0,0 +1,858 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a connected client on the TCP server, along with all the state required to serve it:
+ * the receive and send buffers, the protocol spoken with the client and the data processor engine
+ * which translates the sensor data of the client into mouse movements.
+ *
+ * The session is driven by its server: whenever bytes are received, {@link #receive()} is called, which
+ * detects the protocol, performs the handshake and processes the received packets. If the channel is
+ * non-blocking, the session never blocks; if the channel is blocking, the session is served by a thread
+ * of its own, and {@link #receive()} blocks until bytes are received.
+ *
+ * Sensor data received by the {@see UdpDataServer} is never processed on its thread directly, since the engine and
+ * the listeners are only ever used by one thread at a time: the datagrams are queued in a coalescer of their own,
+ * which is drained on the selector thread, or, if the session has a thread of its own which is blocked in a read,
+ * on the thread of the UDP data server, while holding the lock which the session thread holds while processing.
+ *
+ * When the connection of a client is lost, rather than closed by the client, the server may suspend the session
+ * instead of closing it, and keep it for a grace period: the client may then present the resume token it received
+ * during the handshake, and continue with the engine of the suspended session, keeping its calibration.
+ *
+ * @author RoliSoft
+ */
+public class Session {
+
+    /**
+     * The size of the receive buffer, which limits the size of a single packet.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * The size of the send buffer.
+     */
+    private static final int WRITE_BUFFER_SIZE = 4096;
+
+    private TcpServer _server;
+    private SocketChannel _channel;
+    private SelectionKey _key;
+    private InetAddress _address;
+    private long _acceptTime;
+    private InputStream _input;
+    private ByteBuffer _readBuffer;
+    private ByteBuffer _writeBuffer;
+    private boolean _endOfStream;
+    private volatile boolean _closed;
+    private boolean _quit;
+    private long _resumeToken;
+    private long _suspendTime;
+
+    private Protocol _protocol;
+    private boolean _handshaken;
+    private SampleCoalescer _coalescer;
+    private final Object _lock = new Object();
+    private final SampleCoalescer _datagrams;
+    private final AtomicBoolean _drainScheduled = new AtomicBoolean();
+    private final Runnable _drainTask;
+    private ClockEstimator _clock;
+    private long _pingTime;
+    private boolean _heartbeat;
+    private long _receiveTime;
+    private String _socketOptions;
+
+    private String _name;
+    private int _type;
+    private volatile DataProcessorEngine _engine;
+    private PointerArbiter.Device _device;
+    private boolean _pressed;
+    private volatile long _dataToken;
+    private int _dataSequence;
+    private boolean _hasDataSequence;
+
+    /**
+     * Initializes the current instance.
+     *
+     * @param server  The server which accepted the client.
+     * @param channel The channel connected to the client.
+     */
+    public Session(TcpServer server, SocketChannel channel) {
+        _server      = server;
+        _channel     = channel;
+        _address     = channel.socket().getInetAddress();
+        _acceptTime  = System.nanoTime();
+        _receiveTime = _acceptTime;
+        _readBuffer  = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        _writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        _coalescer   = new SampleCoalescer(this);
+        _datagrams   = new SampleCoalescer(this);
+        _drainTask   = new Runnable() {
+            @Override
+            public void run() {
+                _drainScheduled.set(false);
+                drainDatagrams();
+            }
+        };
+        _clock       = new ClockEstimator();
+        _resumeToken = server.newResumeToken();
+        _socketOptions = SocketProfile.describe(channel);
+
+        _readBuffer.flip();
+    }
+
+    /**
+     * Gets the server which accepted the client.
+     *
+     * @return Server instance.
+     */
+    public TcpServer getServer() {
+        return _server;
+    }
+
+    /**
+     * Gets the channel connected to the client.
+     *
+     * @return Socket channel.
+     */
+    public SocketChannel getChannel() {
+        return _channel;
+    }
+
+    /**
+     * Sets the selection key of the channel, when it is registered with a selector.
+     *
+     * @param key Selection key.
+     */
+    void setSelectionKey(SelectionKey key) {
+        _key = key;
+    }
+
+    /**
+     * Gets the IP address of the client.
+     *
+     * @return IP address of the client.
+     */
+    public InetAddress getAddress() {
+        return _address;
+    }
+
+    /**
+     * Gets the time when the client was accepted, as returned by {@see System#nanoTime()}.
+     *
+     * @return Time of acceptance in nanoseconds.
+     */
+    public long getAcceptTime() {
+        return _acceptTime;
+    }
+
+    /**
+     * Gets the name of the device, as sent during the handshake, or null if the handshake is not yet done.
+     *
+     * @return Name of the device or null.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Gets the data processor engine which translates the sensor data of this client, or null if the
+     * handshake is not yet done, or the client has selected an unknown sensor type.
+     *
+     * @return Data processor engine or null.
+     */
+    public DataProcessorEngine getEngine() {
+        return _engine;
+    }
+
+    /**
+     * Gets the device through which this client controls the mouse, or null if the handshake is not yet done.
+     *
+     * @return Arbitrated device or null.
+     */
+    public PointerArbiter.Device getDevice() {
+        return _device;
+    }
+
+    /**
+     * Gets the protocol spoken with the client, or null if it is not yet detected.
+     *
+     * @return Protocol instance or null.
+     */
+    public Protocol getProtocol() {
+        return _protocol;
+    }
+
+    /**
+     * Gets a value indicating whether the handshake was successfully done.
+     *
+     * @return Value indicating whether the handshake is done.
+     */
+    public boolean isHandshaken() {
+        return _handshaken;
+    }
+
+    /**
+     * Gets the coalescer which passes the sensor data of this client along.
+     *
+     * @return The sample coalescer.
+     */
+    public SampleCoalescer getCoalescer() {
+        return _coalescer;
+    }
+
+    /**
+     * Gets the effective values of the socket options, as applied by the operating system when the client was accepted.
+     *
+     * @return The options and their values, see {@see SocketProfile#describe}.
+     */
+    public String getSocketOptions() {
+        return _socketOptions;
+    }
+
+    /**
+     * Gets the token with which the client may resume this session after its connection was lost.
+     *
+     * @return Resume token, or zero if resuming is disabled.
+     */
+    public long getResumeToken() {
+        return _resumeToken;
+    }
+
+    /**
+     * Gets a value indicating whether this session may be suspended when its connection is lost:
+     * the handshake was done, resuming is enabled, and the client has not said goodbye.
+     *
+     * @return Value indicating whether the session can be resumed.
+     */
+    boolean isResumable() {
+        return _handshaken && !_quit && !_closed && _resumeToken != 0;
+    }
+
+    /**
+     * Gets the time when the session was suspended, as returned by {@see System#nanoTime()}.
+     *
+     * @return Time of suspension in nanoseconds.
+     */
+    long getSuspendTime() {
+        return _suspendTime;
+    }
+
+    /**
+     * Suspends the session after its connection was lost: stops the movement of the device and closes the channel,
+     * but keeps the engine, the focus and the pressed button, without notifying the client listeners.
+     */
+    void suspend() {
+        synchronized (_lock) {
+            _coalescer.flush();
+        }
+
+        _suspendTime = System.nanoTime();
+
+        if (_device != null) {
+            _device.setHeading(0, 0);
+        }
+
+        try {
+            _channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Gets the estimator of the round-trip time and the clock offset of the client.
+     *
+     * @return Clock estimator instance.
+     */
+    public ClockEstimator getClock() {
+        return _clock;
+    }
+
+    /**
+     * Gets the token with which the client may send sensor data through the {@see UdpDataServer},
+     * or zero if it was not given one.
+     *
+     * @return Session token or zero.
+     */
+    public long getDataToken() {
+        return _dataToken;
+    }
+
+    /**
+     * Sets the token with which the client may send sensor data through the {@see UdpDataServer}.
+     *
+     * @param token Session token.
+     */
+    void setDataToken(long token) {
+        _dataToken = token;
+    }
+
+    /**
+     * Decides whether a datagram received through the {@see UdpDataServer} is newer than the last accepted one,
+     * and if so, remembers its sequence number. Sequence numbers are compared with wrap-around.
+     * Only called by the thread of the UDP data server.
+     *
+     * @param sequence The sequence number of the datagram.
+     *
+     * @return Value indicating whether the datagram should be processed.
+     */
+    boolean acceptDataSequence(int sequence) {
+        if (_hasDataSequence && sequence - _dataSequence <= 0) {
+            return false;
+        }
+
+        _dataSequence = sequence;
+        _hasDataSequence = true;
+        return true;
+    }
+
+    /**
+     * Gets the receive buffer of this session.
+     * The buffer is in "read mode": the bytes between its position and limit are the ones which
+     * were received from the socket, but not yet consumed by the protocol.
+     *
+     * @return The receive buffer.
+     */
+    public ByteBuffer getReadBuffer() {
+        return _readBuffer;
+    }
+
+    /**
+     * Gets a value indicating whether the client has closed its side of the connection.
+     * When true, no more bytes will arrive than the ones already in the receive buffer.
+     *
+     * @return Value indicating whether the stream has ended.
+     */
+    public boolean isEndOfStream() {
+        return _endOfStream;
+    }
+
+    /**
+     * Gets a value indicating whether the session was closed.
+     *
+     * @return Value indicating whether the session was closed.
+     */
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Reads the available bytes from the socket into the receive buffer.
+     * Bytes which were not yet consumed are moved to the beginning of the buffer.
+     *
+     * If the channel is blocking, the read is done through the socket, so that it honors the
+     * read timeout of the socket, which the server uses to limit the duration of the handshake.
+     *
+     * @return The number of bytes read, or -1 if the stream has ended.
+     *
+     * @throws IOException Occurs when the stream becomes invalid, the read timed out or the buffer is full.
+     */
+    private int fill() throws IOException {
+        _readBuffer.compact();
+
+        if (!_readBuffer.hasRemaining()) {
+            _readBuffer.flip();
+            throw new IOException("Packet does not fit into the receive buffer.");
+        }
+
+        int read;
+        try {
+            if (_channel.isBlocking()) {
+                if (_input == null) {
+                    _input = _channel.socket().getInputStream();
+                }
+
+                read = _input.read(_readBuffer.array(), _readBuffer.arrayOffset() + _readBuffer.position(), _readBuffer.remaining());
+
+                if (read > 0) {
+                    _readBuffer.position(_readBuffer.position() + read);
+                }
+            } else {
+                read = _channel.read(_readBuffer);
+            }
+        } catch (SocketTimeoutException ex) {
+            if (!_handshaken) {
+                throw new SocketTimeoutException("Handshake timed out.");
+            }
+
+            read = 0;
+        } finally {
+            _readBuffer.flip();
+        }
+
+        if (read == -1) {
+            _endOfStream = true;
+        } else if (read > 0) {
+            _receiveTime = System.nanoTime();
+        }
+
+        return read;
+    }
+
+    /**
+     * Reads the bytes waiting on the socket and processes them: detects the protocol of the client,
+     * performs the handshake, and then processes as many packets as were received. Sensor data
+     * which piled up is coalesced, and the newest sample is passed along once the socket is drained.
+     * If the channel is blocking, this blocks until some bytes are received, and the newest sample is
+     * passed along before returning, so that it is never held back while waiting for the next read.
+     *
+     * @return Value indicating whether the session should be kept open.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    public boolean receive() throws IOException {
+        while (true) {
+            int read = fill();
+
+            synchronized (_lock) {
+                if (!process()) {
+                    return false;
+                }
+            }
+
+            if (read <= 0 || _channel.isBlocking() && _input.available() == 0) {
+                break;
+            }
+        }
+
+        synchronized (_lock) {
+            _coalescer.flush();
+        }
+
+        return !_endOfStream;
+    }
+
+    /**
+     * Queues sensor data received by the {@see UdpDataServer}, and has it passed along on the thread which
+     * serves the session, or under its lock, if that thread is blocked in a read.
+     * Only called by the thread of the UDP data server.
+     *
+     * @param data Sensor data, which is copied, therefore the array may be reused after the call.
+     */
+    void offerDatagram(double[] data) {
+        synchronized (_datagrams) {
+            _datagrams.offer(data);
+        }
+
+        if (_channel.isBlocking()) {
+            drainDatagrams();
+        } else if (_drainScheduled.compareAndSet(false, true)) {
+            _server.execute(_drainTask);
+        }
+    }
+
+    /**
+     * Passes the queued datagrams along, holding the lock of the session.
+     */
+    private void drainDatagrams() {
+        synchronized (_lock) {
+            if (_closed) {
+                return;
+            }
+
+            synchronized (_datagrams) {
+                _datagrams.drainTo(_coalescer);
+            }
+
+            _coalescer.flush();
+        }
+    }
+
+    /**
+     * Processes the bytes in the receive buffer, until a packet is incomplete.
+     *
+     * @return Value indicating whether the session should be kept open.
+     *
+     * @throws IOException Occurs when the handshake or a packet is invalid.
+     */
+    private boolean process() throws IOException {
+        if (_protocol == null) {
+            _protocol = _server.getProtocolRegistry().detect(this);
+
+            if (_protocol == null) {
+                return true;
+            }
+        }
+
+        if (!_handshaken) {
+            Protocol protocol = _protocol.handshake();
+
+            if (protocol == null) {
+                return true;
+            }
+
+            _protocol = protocol;
+            _handshaken = true;
+
+            // After the handshake, the read timeout of a blocking socket only wakes the thread up to poll the session.
+            if (_channel.isBlocking()) {
+                _channel.socket().setSoTimeout(TcpServer.POLL_INTERVAL);
+            }
+        }
+
+        while (true) {
+            int result = _protocol.readNext();
+
+            if (result == Protocol.CLOSE) {
+                _quit = !_endOfStream;
+                return false;
+            }
+
+            if (result == Protocol.INCOMPLETE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the time when bytes were last received from the client, as returned by {@see System#nanoTime()}.
+     *
+     * @return Time of the last receive in nanoseconds.
+     */
+    public long getReceiveTime() {
+        return _receiveTime;
+    }
+
+    /**
+     * Performs the periodic tasks of the session, which the server calls at least every
+     * {@link TcpServer#POLL_INTERVAL}: sends a ping every {@link TcpServer#PING_INTERVAL}, or every third of the idle
+     * timeout if that is shorter, if the protocol supports it, drops the heading of the device from the blend if it
+     * was not set recently, see {@link PointerArbiter.Device#expire(long)}, and declares the client dead, if nothing
+     * was received from it within the idle timeout set in the {@see ServerManager}. A phone which left the network
+     * without closing the connection would otherwise hold its session, and the heading, forever. The timeout is only
+     * enforced once the client is being pinged, since a legacy client which did not negotiate a protocol version is
+     * silent while it is held still.
+     *
+     * @param now The current time, as returned by {@see System#nanoTime()}.
+     *
+     * @throws IOException Occurs when the stream becomes invalid, or the client is idle for too long.
+     */
+    void poll(long now) throws IOException {
+        if (!_handshaken || _closed) {
+            return;
+        }
+
+        int timeout = _server.getServerManager().getIdleTimeout();
+
+        // A short idle timeout needs more frequent heartbeats, otherwise a live client would be declared dead
+        // between two pings.
+        int interval = timeout != 0 ? Math.min(TcpServer.PING_INTERVAL, timeout / 3) : TcpServer.PING_INTERVAL;
+
+        if (now - _pingTime >= TimeUnit.MILLISECONDS.toNanos(interval)) {
+            _pingTime = now;
+
+            if (_protocol.sendPing(ClockEstimator.now())) {
+                _heartbeat = true;
+            }
+        }
+
+        if (_device != null) {
+            _device.expire(now);
+        }
+
+        // A client which is not pinged only sends when it moves, therefore its silence does not mean that it is dead.
+        if (_heartbeat && timeout != 0 && now - _receiveTime > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            if (_device != null) {
+                _device.setHeading(0, 0);
+            }
+
+            throw new SocketTimeoutException("Nothing was received for " + TimeUnit.NANOSECONDS.toMillis(now - _receiveTime) + " ms.");
+        }
+    }
+
+    /**
+     * Gets the send buffer, making sure it has enough space for the specified number of bytes.
+     * After the bytes are put into the buffer, {@link #flush()} has to be called to send them.
+     *
+     * @param size The number of bytes to be written.
+     *
+     * @return The send buffer in "write mode".
+     *
+     * @throws IOException Occurs when the buffer is full, due to the client not reading from the socket.
+     */
+    public ByteBuffer beginWrite(int size) throws IOException {
+        if (_writeBuffer.remaining() < size) {
+            throw new IOException("Send buffer is full, client is not reading.");
+        }
+
+        return _writeBuffer;
+    }
+
+    /**
+     * Sends as much of the send buffer as the socket accepts without blocking. If some bytes
+     * remain, the server will be notified when the socket is writable again.
+     * If the channel is blocking, the whole send buffer is sent before returning.
+     *
+     * @throws IOException Occurs when the stream becomes invalid.
+     */
+    public void flush() throws IOException {
+        _writeBuffer.flip();
+
+        try {
+            _channel.write(_writeBuffer);
+        } finally {
+            _writeBuffer.compact();
+        }
+
+        if (_key != null && _key.isValid()) {
+            int ops = _writeBuffer.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+
+            if (_key.interestOps() != ops) {
+                _key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, notifying the client listeners accordingly: if the handshake was done, they are
+     * notified of the disconnection after any pending sensor data, otherwise they are notified of the error.
+     *
+     * @param error The error which caused the session to end, or null if it was closed gracefully.
+     */
+    public void close(Exception error) {
+        synchronized (_lock) {
+            if (_closed) {
+                return;
+            }
+
+            _closed = true;
+
+            if (_handshaken) {
+                _coalescer.flush();
+            }
+        }
+
+        if (_pressed) {
+            _pressed = false;
+            MouseHandler.release();
+        }
+
+        if (_device != null) {
+            _device.yieldFocus();
+        }
+
+        try {
+            _channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        if (_handshaken) {
+            for (ClientListener dl : getListeners()) {
+                dl.clientDisconnected();
+            }
+        } else if (error != null) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, error);
+
+            for (ClientListener dl : getListeners()) {
+                dl.connectionError(error);
+            }
+        }
+
+        _engine = null;
+    }
+
+    /**
+     * Gets the current list of client listeners.
+     *
+     * @return A list of client listeners.
+     */
+    private ArrayList<ClientListener> getListeners() {
+        return _server.getListeners();
+    }
+
+    /**
+     * Handles the handshake of the client: instantiates the engine of the requested sensor type,
+     * and notifies the client listeners. If the client presented the token of a suspended session,
+     * the state of that session is taken over instead, and the client listeners are not notified,
+     * as for them, the client has never left.
+     *
+     * @param name   The name of the connecting device.
+     * @param type   The type of the sensor which the client initially offers.
+     * @param resume The resume token of the suspended session, or zero to start a new one.
+     */
+    void clientConnected(String name, int type, long resume) {
+        Session previous = resume != 0 ? _server.resume(resume) : null;
+
+        if (previous != null) {
+            resume(previous, name, type);
+            return;
+        }
+
+        _name = name;
+        _type = type;
+        _device = MouseHandler.getArbiter().createDevice();
+        _engine = createEngine(type);
+
+        for (ClientListener dl : getListeners()) {
+            dl.clientConnected(_address, name, type);
+        }
+    }
+
+    /**
+     * Takes over the state of the specified suspended session, which is then closed silently.
+     * The engine is kept, along with its calibration, unless the client now offers a different sensor.
+     *
+     * @param previous The suspended session.
+     * @param name     The name of the connecting device.
+     * @param type     The type of the sensor which the client offers.
+     */
+    private void resume(Session previous, String name, int type) {
+        _name = name;
+        _type = type;
+        _device = previous._device;
+        _pressed = previous._pressed;
+        _engine = previous._type == type ? previous._engine : createEngine(type);
+
+        previous._closed = true;
+        previous._device = null;
+        previous._engine = null;
+        previous._pressed = false;
+
+        Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Client {0} resumed its session", _address.getHostAddress());
+
+        if (type != previous._type) {
+            for (ClientListener dl : getListeners()) {
+                dl.sensorChangeReceived(type);
+            }
+        }
+    }
+
+    /**
+     * Passes sensor data to the engine of this session and to the client listeners, bypassing the coalescer.
+     *
+     * @param data Sensor data to be processed.
+     */
+    void dispatchSensorData(double[] data) {
+        DataProcessorEngine engine = _engine;
+        if (engine != null) {
+            engine.processData(data);
+        }
+
+        ArrayList<ClientListener> listeners = getListeners();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).sensorDataReceived(data);
+        }
+    }
+
+    /**
+     * Handles a sensor type change: replaces the engine, and notifies the client listeners.
+     *
+     * @param type Sensor ID to continue processing the data.
+     */
+    void sensorChangeReceived(int type) {
+        _coalescer.flush();
+        _type = type;
+        _engine = createEngine(type);
+
+        for (ClientListener dl : getListeners()) {
+            dl.sensorChangeReceived(type);
+        }
+    }
+
+    /**
+     * Handles a recalibration request: recalibrates the engine, and notifies the client listeners.
+     */
+    void sensorRecalibrateRequest() {
+        _coalescer.flush();
+
+        DataProcessorEngine engine = _engine;
+        if (engine != null) {
+            engine.recalibrate();
+        }
+
+        for (ClientListener dl : getListeners()) {
+            dl.sensorRecalibrateRequest();
+        }
+    }
+
+    /**
+     * Handles a click request: presses or releases the mouse button, and notifies the client listeners.
+     * The button is only pressed if the {@see PointerArbiter} allows this client to act, and only
+     * released if it was pressed by this client.
+     *
+     * @param release Value indicating whether this is a click finish or a new click.
+     */
+    void clickRequested(boolean release) {
+        _coalescer.flush();
+
+        if (_engine != null) {
+            if (release) {
+                if (_pressed) {
+                    _pressed = false;
+                    MouseHandler.release();
+                }
+            } else if (_device.activate()) {
+                _pressed = true;
+                MouseHandler.press();
+            }
+        }
+
+        for (ClientListener dl : getListeners()) {
+            dl.clickRequested(release);
+        }
+    }
+
+    /**
+     * Handles the answer to a ping: updates the estimates of the round-trip time and the clock offset.
+     *
+     * @param sent     The server time when the ping was sent, as echoed by the client.
+     * @param received The client time when the ping was received.
+     * @param answered The client time when the answer was sent.
+     */
+    void pongReceived(long sent, long received, long answered) {
+        long arrived = ClockEstimator.now();
+
+        if (_clock.update(sent, received, answered, arrived) && DiagnosticLog.PACKETS.sample()) {
+            DiagnosticLog.PACKETS.log("Round-trip time is {0} us", _clock.getRoundTripTime());
+        }
+    }
+
+    /**
+     * Handles a focus request: takes the control of the mouse from the other clients, or gives it up.
+     *
+     * @param take Value indicating whether the focus is taken or given up.
+     */
+    void focusRequested(boolean take) {
+        _coalescer.flush();
+
+        if (_device == null) {
+            return;
+        }
+
+        if (take) {
+            _device.requestFocus();
+        } else {
+            _device.yieldFocus();
+        }
+    }
+
+    /**
+     * Instantiates the engine of the specified sensor type.
+     *
+     * @param type The type of the sensor.
+     *
+     * @return A new engine instance, or null if the type is unknown.
+     */
+    private DataProcessorEngine createEngine(int type) {
+        try {
+            DataProcessorEngine engine = DataProcessorEngine.createFromType(type);
+            engine.setDevice(_device);
+            return engine;
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(Session.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+}
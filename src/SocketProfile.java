@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes the options which are set on the sockets of the servers.
+ *
+ * The default options of the operating system are tuned for throughput: Nagle's algorithm holds back small replies,
+ * such as the pongs, until the previous ones are acknowledged, and large receive buffers let stale samples queue up
+ * behind each other. The {@link #INTERACTIVE} profile, which is used unless the "airmouse.socket.profile" system
+ * property is set to "default", disables Nagle's algorithm, shrinks the buffers, marks the packets for low latency,
+ * and enables keep-alive. The buffer sizes and the traffic class can be overridden with the "airmouse.socket.rcvbuf",
+ * "airmouse.socket.sndbuf" and "airmouse.socket.tos" system properties.
+ *
+ * The operating system is free to adjust or ignore any of the options, for example Linux doubles the buffer sizes,
+ * and Windows ignores the traffic class, therefore the effective values can be read back with {@link #describe}.
+ *
+ * @author RoliSoft
+ */
+public class SocketProfile {
+
+    /**
+     * The options of the operating system are left untouched.
+     */
+    public static final int DEFAULT = 0;
+
+    /**
+     * The options are tuned for the latency of small, frequent packets.
+     */
+    public static final int INTERACTIVE = 1;
+
+    /**
+     * The size of the buffers in the {@link #INTERACTIVE} profile, which still holds hundreds of samples.
+     */
+    private static final int INTERACTIVE_BUFFER_SIZE = 8192;
+
+    /**
+     * The traffic class in the {@link #INTERACTIVE} profile: DSCP Expedited Forwarding, which Wi-Fi access points
+     * map to the voice access category.
+     */
+    private static final int INTERACTIVE_TRAFFIC_CLASS = 0xB8;
+
+    private boolean _noDelay;
+    private boolean _keepAlive;
+    private int _receiveBufferSize;
+    private int _sendBufferSize;
+    private int _trafficClass;
+
+    /**
+     * Initializes the current instance with the profile and the overrides set in the system properties.
+     */
+    public SocketProfile() {
+        this("default".equalsIgnoreCase(System.getProperty("airmouse.socket.profile")) ? DEFAULT : INTERACTIVE);
+
+        _receiveBufferSize = Integer.getInteger("airmouse.socket.rcvbuf", _receiveBufferSize);
+        _sendBufferSize    = Integer.getInteger("airmouse.socket.sndbuf", _sendBufferSize);
+        _trafficClass      = Integer.getInteger("airmouse.socket.tos", _trafficClass);
+    }
+
+    /**
+     * Initializes the current instance with the specified profile.
+     *
+     * @param profile {@link #DEFAULT} or {@link #INTERACTIVE}.
+     */
+    public SocketProfile(int profile) {
+        if (profile != DEFAULT && profile != INTERACTIVE) {
+            throw new IllegalArgumentException("Unsupported socket profile: " + profile);
+        }
+
+        boolean interactive = profile == INTERACTIVE;
+
+        _noDelay           = interactive;
+        _keepAlive         = interactive;
+        _receiveBufferSize = interactive ? INTERACTIVE_BUFFER_SIZE : 0;
+        _sendBufferSize    = interactive ? INTERACTIVE_BUFFER_SIZE : 0;
+        _trafficClass      = interactive ? INTERACTIVE_TRAFFIC_CLASS : -1;
+    }
+
+    /**
+     * Gets a value indicating whether Nagle's algorithm is disabled on TCP sockets.
+     *
+     * @return Value indicating whether TCP_NODELAY is set.
+     */
+    public boolean isNoDelay() {
+        return _noDelay;
+    }
+
+    /**
+     * Sets a value indicating whether Nagle's algorithm is disabled on TCP sockets.
+     *
+     * @param noDelay Value indicating whether TCP_NODELAY is set.
+     */
+    public void setNoDelay(boolean noDelay) {
+        _noDelay = noDelay;
+    }
+
+    /**
+     * Gets a value indicating whether keep-alive probes are sent on idle TCP sockets.
+     *
+     * @return Value indicating whether SO_KEEPALIVE is set.
+     */
+    public boolean isKeepAlive() {
+        return _keepAlive;
+    }
+
+    /**
+     * Sets a value indicating whether keep-alive probes are sent on idle TCP sockets.
+     *
+     * @param keepAlive Value indicating whether SO_KEEPALIVE is set.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        _keepAlive = keepAlive;
+    }
+
+    /**
+     * Gets the requested size of the receive buffers.
+     *
+     * @return Size in bytes, or zero if the default of the operating system is used.
+     */
+    public int getReceiveBufferSize() {
+        return _receiveBufferSize;
+    }
+
+    /**
+     * Sets the requested size of the receive buffers.
+     *
+     * @param size Size in bytes, or zero to use the default of the operating system.
+     */
+    public void setReceiveBufferSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The buffer size cannot be negative.");
+        }
+
+        _receiveBufferSize = size;
+    }
+
+    /**
+     * Gets the requested size of the send buffers.
+     *
+     * @return Size in bytes, or zero if the default of the operating system is used.
+     */
+    public int getSendBufferSize() {
+        return _sendBufferSize;
+    }
+
+    /**
+     * Sets the requested size of the send buffers.
+     *
+     * @param size Size in bytes, or zero to use the default of the operating system.
+     */
+    public void setSendBufferSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("The buffer size cannot be negative.");
+        }
+
+        _sendBufferSize = size;
+    }
+
+    /**
+     * Gets the traffic class, the former type of service octet, of the sent packets.
+     *
+     * @return Traffic class, or -1 if the default of the operating system is used.
+     */
+    public int getTrafficClass() {
+        return _trafficClass;
+    }
+
+    /**
+     * Sets the traffic class, the former type of service octet, of the sent packets.
+     *
+     * @param trafficClass Traffic class between 0 and 255, or -1 to use the default of the operating system.
+     */
+    public void setTrafficClass(int trafficClass) {
+        if (trafficClass < -1 || trafficClass > 255) {
+            throw new IllegalArgumentException("The traffic class has to be between 0 and 255.");
+        }
+
+        _trafficClass = trafficClass;
+    }
+
+    /**
+     * Sets the options of this profile on the specified channel, which may be a listening, a connected or
+     * a datagram channel. Options which the channel does not support are skipped, and options which the
+     * operating system refuses, or whose values are out of range, are logged, without failing the connection.
+     *
+     * @param channel The channel to set the options on.
+     */
+    public void apply(NetworkChannel channel) {
+        if (_receiveBufferSize != 0) {
+            set(channel, StandardSocketOptions.SO_RCVBUF, _receiveBufferSize);
+        }
+
+        if (_sendBufferSize != 0) {
+            set(channel, StandardSocketOptions.SO_SNDBUF, _sendBufferSize);
+        }
+
+        if (_trafficClass != -1) {
+            set(channel, StandardSocketOptions.IP_TOS, _trafficClass);
+        }
+
+        if (_noDelay) {
+            set(channel, StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        if (_keepAlive) {
+            set(channel, StandardSocketOptions.SO_KEEPALIVE, true);
+        }
+    }
+
+    /**
+     * Reads back the effective values of the options which the specified channel supports.
+     *
+     * @param channel The channel to read the options of.
+     *
+     * @return The options and their values, for example "TCP_NODELAY=true SO_RCVBUF=16384".
+     */
+    public static String describe(NetworkChannel channel) {
+        StringBuilder sb = new StringBuilder();
+
+        describe(sb, channel, StandardSocketOptions.TCP_NODELAY);
+        describe(sb, channel, StandardSocketOptions.SO_KEEPALIVE);
+        describe(sb, channel, StandardSocketOptions.SO_RCVBUF);
+        describe(sb, channel, StandardSocketOptions.SO_SNDBUF);
+        describe(sb, channel, StandardSocketOptions.IP_TOS);
+
+        return sb.toString();
+    }
+
+    /**
+     * Sets the specified option on the channel, if the channel supports it.
+     *
+     * @param channel The channel to set the option on.
+     * @param option  The option to set.
+     * @param value   The value of the option.
+     * @param <T>     The type of the value.
+     */
+    private static <T> void set(NetworkChannel channel, SocketOption<T> option, T value) {
+        if (!channel.supportedOptions().contains(option)) {
+            return;
+        }
+
+        try {
+            channel.setOption(option, value);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Failed to set " + option.name() + " to " + value, ex);
+        }
+    }
+
+    /**
+     * Appends the effective value of the specified option to the description, if the channel supports it.
+     *
+     * @param sb      The description to append to.
+     * @param channel The channel to read the option of.
+     * @param option  The option to read.
+     */
+    private static void describe(StringBuilder sb, NetworkChannel channel, SocketOption<?> option) {
+        if (!channel.supportedOptions().contains(option)) {
+            return;
+        }
+
+        Object value;
+        try {
+            value = channel.getOption(option);
+        } catch (IOException | UnsupportedOperationException ex) {
+            value = "?";
+        }
+
+        if (sb.length() != 0) {
+            sb.append(' ');
+        }
+
+        sb.append(option.name()).append('=').append(value);
+    }
+
+}
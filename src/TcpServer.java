@@ -1,24 +1,73 @@
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- *  Multi-threaded yet single-client TCP server implementation.
+ *  Multi-client TCP server implementation, serving any number of connected clients at the same time.
+ *
+ *  Depending on the execution mode of the {@see ServerManager}, the server either uses a non-blocking
+ *  {@see Selector} on a single background thread: whenever bytes are received from one of the clients,
+ *  the {@see Session} of that client processes them without blocking; or it accepts the clients with
+ *  blocking I/O, and serves each of them on a virtual thread of its own, which is cheap enough to
+ *  handle bursts of connections and reconnects. Either way, a slow or stalled client does not delay the others.
+ *
+ *  Clients which do not finish the handshake within {@link #HANDSHAKE_TIMEOUT} are disconnected, and clients which
+ *  send nothing, not even an answer to the pings, within the idle timeout set in the {@see ServerManager} are
+ *  considered dead: their heading is zeroed, and they are treated as if their connection was lost.
+ *
+ *  When the connection of a client is lost without the client saying goodbye, for example due to a Wi-Fi hiccup,
+ *  its session is suspended for the grace period set in the {@see ServerManager}, so that the client can reconnect
+ *  and resume it with its resume token, keeping the calibration of its engine. Suspended sessions which are not
+ *  resumed in time are closed, and only then are the client listeners notified of the disconnection.
  *
  *  @author RoliSoft
  */
 public class TcpServer implements Runnable {
 
+    /**
+     * The number of milliseconds a client has to finish the handshake after it was accepted.
+     */
+    public static final int HANDSHAKE_TIMEOUT = 5000;
+
+    /**
+     * The number of milliseconds between the periodic tasks of the sessions, such as pinging the clients.
+     */
+    public static final int POLL_INTERVAL = 500;
+
+    /**
+     * The number of milliseconds between the pings sent to the clients, in order to measure the round-trip time.
+     */
+    public static final int PING_INTERVAL = 2000;
+
     private ServerManager _serverManager;
     private Thread _thread;
-    private Socket _client;
-    private ServerSocket _server;
-    private DataInputStream _inputStream;
-    private DataOutputStream _outputStream;
-    private Protocol _protocol;
+    private volatile boolean _running;
+    private int _mode;
+    private Selector _selector;
+    private ServerSocketChannel _server;
+    private CopyOnWriteArrayList<Session> _sessions;
+    private ConcurrentHashMap<Session, Thread> _handlers;
+    private ConcurrentHashMap<Long, Session> _suspended;
+    private SecureRandom _random;
+    private ConcurrentLinkedQueue<Runnable> _tasks;
+    private ProtocolRegistry _registry;
+    private long _lastPoll;
 
     /**
      * Initializes this instance.
@@ -27,6 +76,12 @@ public class TcpServer implements Runnable {
      */
     public TcpServer(ServerManager serverManager) {
         _serverManager = serverManager;
+        _sessions = new CopyOnWriteArrayList<>();
+        _handlers = new ConcurrentHashMap<>();
+        _suspended = new ConcurrentHashMap<>();
+        _random = new SecureRandom();
+        _tasks = new ConcurrentLinkedQueue<>();
+        _registry = ProtocolRegistry.createDefault();
     }
 
     /**
@@ -35,16 +90,16 @@ public class TcpServer implements Runnable {
      * @return Value indicating whether TCP server is alive.
      */
     public boolean isListening() {
-        return _server != null && _server.isBound();
+        return _server != null && _server.isOpen();
     }
 
     /**
-     * Gets a value indicating whether the TCP server has a connected client or not.
+     * Gets a value indicating whether the TCP server has any connected clients or not.
      *
      * @return Value indicating whether a client is connected.
      */
     public boolean isConnected() {
-        return _client != null && _client.isConnected();
+        return !_sessions.isEmpty();
     }
 
     /**
@@ -53,16 +108,17 @@ public class TcpServer implements Runnable {
      * @return Port of the TCP server or -1.
      */
     public int getPort() {
-        return !isListening() ? -1 : _server.getLocalPort();
+        return !isListening() ? -1 : _server.socket().getLocalPort();
     }
 
     /**
-     * Gets the currently connected client or null.
+     * Gets the sessions of the currently connected clients.
+     * The returned list is safe to iterate from any thread.
      *
-     * @return Connected client or null.
+     * @return List of sessions.
      */
-    public Socket getClient() {
-        return _client;
+    public List<Session> getSessions() {
+        return _sessions;
     }
 
     /**
@@ -75,21 +131,28 @@ public class TcpServer implements Runnable {
     }
 
     /**
-     * Gets the current instance of the TCP input stream.
+     * Gets the number of samples of the connected clients which were dropped, because a newer
+     * sample was already received by the time they could have been processed.
      *
-     * @return The input stream to read from.
+     * @return Number of dropped samples.
      */
-    public DataInputStream getInputStream() {
-        return _inputStream;
+    public long getDroppedSampleCount() {
+        long dropped = 0;
+
+        for (Session session : _sessions) {
+            dropped += session.getCoalescer().getDroppedCount();
+        }
+
+        return dropped;
     }
 
     /**
-     * Gets the current instance of the TCP output stream.
+     * Gets the registry of protocols which can be spoken with the clients.
      *
-     * @return The output stream to write to.
+     * @return Protocol registry instance.
      */
-    public DataOutputStream getOutputStream() {
-        return _outputStream;
+    public ProtocolRegistry getProtocolRegistry() {
+        return _registry;
     }
 
     /**
@@ -111,64 +174,201 @@ public class TcpServer implements Runnable {
     public void start() throws IOException {
         stop();
 
-        _server = new ServerSocket(0);
-        _thread = new Thread(this);
+        _mode = _serverManager.getExecutionMode();
+        _server = ServerSocketChannel.open();
+        _serverManager.getSocketProfile().apply(_server);
+        _server.bind(new InetSocketAddress(0));
+
+        if (_mode == ServerManager.EXECUTION_SELECTOR) {
+            _selector = Selector.open();
+            _server.configureBlocking(false);
+            _server.register(_selector, SelectionKey.OP_ACCEPT);
+        } else {
+            _selector = null;
+        }
+
+        _running = true;
+        _thread = _serverManager.newThread("AirMouse TCP server", this);
         _thread.start();
     }
 
     /**
-     * Stops the TCP server, if it is running.
+     * Stops the TCP server, if it is running, and waits for its threads to finish.
      * Please note, connected clients will be disconnected upon closing the bound sockets.
      */
     public void stop() {
-        if (_server != null) {
-            try {
-                _server.close();
-            } catch (IOException ex) {
-                Logger.getLogger(ServerManager.class.getName()).log(Level.FINE, null, ex);
-            }
+        _running = false;
+
+        if (_selector != null) {
+            _selector.wakeup();
         }
 
-        if (_thread != null) {
-            _thread.stop();
-            _thread = null;
+        ServerManager.stopThread(_thread);
+        _thread = null;
+
+        for (Thread handler : _handlers.values()) {
+            handler.interrupt();
+        }
+
+        for (Thread handler : _handlers.values()) {
+            ServerManager.stopThread(handler);
         }
     }
 
     /**
-     * Disconnects the currently connected client, if there is one.
+     * Disconnects the currently connected clients, if there are any.
      * The TCP server will continue to accept new clients at this point.
      */
     public void disconnect() {
-        if (_client != null && _client.isConnected()) {
-            try {
-                _client.close();
-            } catch (IOException ex) {
-                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+        if (_mode == ServerManager.EXECUTION_VIRTUAL_THREADS) {
+            for (Thread handler : _handlers.values()) {
+                handler.interrupt();
+            }
+
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Session session : _sessions) {
+                    close(session, null);
+                }
             }
+        });
+    }
+
+    /**
+     * Runs the specified task on the thread of the server, where it can safely access the sessions.
+     * Only supported when the server uses a selector, in which case all sessions are served on that thread.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        if (_mode != ServerManager.EXECUTION_SELECTOR) {
+            throw new IllegalStateException("Tasks can only be executed on a selector thread.");
         }
 
-        _client = null;
+        _tasks.add(task);
+
+        if (_selector != null) {
+            _selector.wakeup();
+        }
     }
 
     /**
-     * Runs in a separate thread, where it will wait indefinitely until a client connects,
-     * then initiates a handshake, and if all is good, a protocol will be instantiated which
-     * will then receive any further communication through the socket.
+     * Runs in a separate thread, where it waits for clients to connect, and either serves them on
+     * the same thread using the selector, or starts a new thread for each of them.
+     * Newly accepted clients are given a new {@see Session}, which then detects the protocol spoken by the client
+     * from the first bytes it sent, initiates the handshake, and receives any further communication.
      *
      * @see Thread#run()
      */
     @Override
     public void run() {
-        while (_thread != null) {
+        if (_mode == ServerManager.EXECUTION_SELECTOR) {
+            select();
+        } else {
+            acceptAll();
+        }
+    }
+
+    /**
+     * Waits for clients to connect and for connected clients to send data, and serves them on the current thread.
+     */
+    private void select() {
+        while (_running) {
             try {
-                _client = _server.accept();
+                _selector.select(POLL_INTERVAL);
+            } catch (IOException | ClosedSelectorException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                break;
+            }
+
+            Runnable task;
+            while ((task = _tasks.poll()) != null) {
+                task.run();
+            }
+
+            pollSessions();
+
+            Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                Session session = (Session)key.attachment();
+
+                try {
+                    if (key.isWritable()) {
+                        session.flush();
+                    }
+
+                    if (key.isReadable() && !session.receive()) {
+                        drop(session, null);
+                    }
+                } catch (IOException ex) {
+                    if (_running) {
+                        drop(session, ex);
+                    } else {
+                        close(session, null);
+                    }
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Session of " + session.getAddress().getHostAddress() + " failed", ex);
+                    close(session, ex);
+                }
+            }
+        }
+
+        for (Session session : _sessions) {
+            close(session, null);
+        }
 
-                _inputStream  = new DataInputStream(new BufferedInputStream(_client.getInputStream()));
-                _outputStream = new DataOutputStream(new BufferedOutputStream(_client.getOutputStream()));
+        closeSuspended();
 
-                _protocol = new PlainTextProtocol(this);
+        try {
+            _server.close();
+            _selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Waits for clients to connect, and starts a new thread for each of them, until the server is stopped.
+     * Interrupting the current thread closes the server socket, which ends the wait. The wait times out
+     * every {@link #POLL_INTERVAL}, in order to close the suspended sessions which were not resumed in time.
+     */
+    private void acceptAll() {
+        try {
+            _server.socket().setSoTimeout(POLL_INTERVAL);
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        while (_running) {
+            SocketChannel channel;
+
+            expireSuspended(System.nanoTime());
+
+            try {
+                channel = _server.socket().accept().getChannel();
+            } catch (SocketTimeoutException ex) {
+                continue;
             } catch (IOException ex) {
+                if (!_running || !_server.isOpen()) {
+                    break;
+                }
+
                 Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
 
                 for (ClientListener dl : getListeners()) {
@@ -178,49 +378,235 @@ public class TcpServer implements Runnable {
                 continue;
             }
 
-            Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Client connected from {0}", _client.getInetAddress().getHostAddress());
+            _serverManager.getSocketProfile().apply(channel);
+
+            final Session session = new Session(this, channel);
 
             try {
-                _protocol.handshake();
-
-                boolean loop = true;
-                while (loop && _client != null) {
-                    try {
-                        loop = _protocol.readNext();
-                    } catch (IOException ex) {
-                        loop = false;
-                    }
-                }
+                channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+            } catch (IOException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
 
-                if (_client != null && _client.isConnected()) {
-                    try {
-                        _client.close();
-                    } catch (IOException ex1) {
-                        Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex1);
-                    }
+            Thread handler = _serverManager.newThread("AirMouse client " + session.getAddress().getHostAddress(), new Runnable() {
+                @Override
+                public void run() {
+                    serve(session);
                 }
+            });
 
-                for (ClientListener dl : getListeners()) {
-                    dl.clientDisconnected();
+            _sessions.add(session);
+            _handlers.put(session, handler);
+
+            Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Client connected from {0} with {1}", new Object[] { session.getAddress().getHostAddress(), session.getSocketOptions() });
+
+            handler.start();
+        }
+
+        try {
+            _server.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.FINE, null, ex);
+        }
+
+        closeSuspended();
+    }
+
+    /**
+     * Serves the specified session on the current thread with blocking reads, until the client leaves,
+     * or the thread is interrupted, in which case the session is closed without an error, and cannot be resumed.
+     *
+     * @param session The session to serve.
+     */
+    private void serve(Session session) {
+        try {
+            boolean open = true;
+
+            while (open && _running) {
+                open = session.receive();
+
+                if (open) {
+                    session.poll(System.nanoTime());
                 }
+            }
+
+            if (_running) {
+                drop(session, null);
+            } else {
+                close(session, null);
+            }
+        } catch (IOException ex) {
+            if (Thread.currentThread().isInterrupted() || !_running) {
+                close(session, null);
+            } else {
+                drop(session, ex);
+            }
+        } catch (RuntimeException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Session of " + session.getAddress().getHostAddress() + " failed", ex);
+            close(session, ex);
+        } finally {
+            _handlers.remove(session);
+        }
+    }
+
+    /**
+     * Performs the periodic tasks of the sessions, and disconnects the clients which have not finished the
+     * handshake in time. The sessions are only polled every {@link #POLL_INTERVAL}, not on every wake-up of
+     * the selector.
+     */
+    private void pollSessions() {
+        long now = System.nanoTime();
+
+        if (now - _lastPoll < TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)) {
+            return;
+        }
+
+        _lastPoll = now;
+
+        for (Session session : _sessions) {
+            if (!session.isHandshaken() && now - session.getAcceptTime() > TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT)) {
+                close(session, new SocketTimeoutException("Handshake timed out."));
+                continue;
+            }
 
+            try {
+                session.poll(now);
             } catch (IOException ex) {
-                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                drop(session, ex);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, "Session of " + session.getAddress().getHostAddress() + " failed", ex);
+                close(session, ex);
+            }
+        }
 
-                for (ClientListener dl : getListeners()) {
-                    dl.connectionError(ex);
-                }
+        expireSuspended(now);
+    }
 
-                if (_client.isConnected()) {
-                    try {
-                        _client.close();
-                    } catch (IOException ex1) {
-                        Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex1);
-                    }
+    /**
+     * Generates a new resume token for a session, if resuming is enabled.
+     *
+     * @return Resume token, or zero if resuming is disabled.
+     */
+    long newResumeToken() {
+        if (_serverManager.getResumeGrace() <= 0) {
+            return 0;
+        }
+
+        long token;
+        do {
+            token = _random.nextLong();
+        } while (token == 0);
+
+        return token;
+    }
+
+    /**
+     * Takes the suspended session with the specified resume token, so that a new connection can resume it.
+     *
+     * @param token The resume token presented by the client.
+     *
+     * @return The suspended session, or null if there is no such session, or it was already resumed or expired.
+     */
+    Session resume(long token) {
+        return _suspended.remove(token);
+    }
+
+    /**
+     * Closes the suspended sessions whose grace period has passed.
+     *
+     * @param now The current time, as returned by {@see System#nanoTime()}.
+     */
+    private void expireSuspended(long now) {
+        if (_suspended.isEmpty()) {
+            return;
+        }
+
+        long grace = TimeUnit.MILLISECONDS.toNanos(_serverManager.getResumeGrace());
+
+        for (Session session : _suspended.values()) {
+            if (now - session.getSuspendTime() > grace && _suspended.remove(session.getResumeToken(), session)) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Session of {0} was not resumed in time", session.getAddress().getHostAddress());
+                session.close(null);
+            }
+        }
+    }
+
+    /**
+     * Closes all suspended sessions, when the server is stopped.
+     */
+    private void closeSuspended() {
+        for (Session session : _suspended.values()) {
+            if (_suspended.remove(session.getResumeToken(), session)) {
+                session.close(null);
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending client, and registers its new session with the selector.
+     */
+    private void accept() {
+        SocketChannel channel = null;
+
+        try {
+            channel = _server.accept();
+            if (channel == null) {
+                return;
+            }
+
+            channel.configureBlocking(false);
+            _serverManager.getSocketProfile().apply(channel);
+
+            Session session = new Session(this, channel);
+            session.setSelectionKey(channel.register(_selector, SelectionKey.OP_READ, session));
+            _sessions.add(session);
+
+            Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Client connected from {0} with {1}", new Object[] { session.getAddress().getHostAddress(), session.getSocketOptions() });
+        } catch (IOException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex1) {
+                    Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex1);
                 }
+            }
 
-                _client = null;
+            for (ClientListener dl : getListeners()) {
+                dl.connectionError(ex);
             }
         }
     }
+
+    /**
+     * Handles the loss of the connection of the specified session: suspends the session, if the client
+     * may resume it, otherwise closes it.
+     *
+     * @param session The session whose connection was lost.
+     * @param error   The error which caused the connection to be lost, or null if the stream has ended.
+     */
+    private void drop(Session session, Exception error) {
+        if (!session.isResumable()) {
+            close(session, error);
+            return;
+        }
+
+        _sessions.remove(session);
+        session.suspend();
+        _suspended.put(session.getResumeToken(), session);
+
+        Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Connection of {0} was lost, suspending its session", session.getAddress().getHostAddress());
+    }
+
+    /**
+     * Closes the specified session and forgets about it.
+     *
+     * @param session The session to close.
+     * @param error   The error which caused the session to end, or null if it was closed gracefully.
+     */
+    private void close(Session session, Exception error) {
+        _sessions.remove(session);
+        session.close(error);
+    }
 }
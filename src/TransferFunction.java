@@ -0,0 +1,362 @@
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps the calibrated sensor values to the speed of the mouse.
+ *
+ * A linear mapping is either too slow to cross the screen, or too fast to hit a small target. The curves of this
+ * class give a low gain to small movements, for precision, and a high gain to large ones, for traversal:
+ *
+ * - {@link #LINEAR}: the value is multiplied by a constant gain;
+ * - {@link #POWER}: the gain grows with a power of the value;
+ * - {@link #SIGMOID}: the gain moves smoothly from a low to a high value around a threshold;
+ * - {@link #PIECEWISE}: the speed is interpolated between the points of a custom curve.
+ *
+ * The curves are symmetric, the sign of the value is kept. Each curve is precomputed into a table over the range in
+ * which it is interesting, and evaluated by linear interpolation between two entries, so a sample costs a couple of
+ * loads, regardless of the curve. Beyond the range, the curve continues with the slope of its last segment.
+ *
+ * Curves can be described with a short specification, for example "linear:10", "power:4,1.5", "sigmoid:2,20,1,0.5"
+ * or "piecewise:0.1=0,1=5,5=60", see {@link #parse}. The curve of each engine type can be set with the
+ * "airmouse.curve.accelerometer", "airmouse.curve.gyroscope" and "airmouse.curve.fusion" system properties.
+ *
+ * @author RoliSoft
+ */
+public class TransferFunction {
+
+    /**
+     * The value is multiplied by a constant gain.
+     */
+    public static final int LINEAR = 0;
+
+    /**
+     * The value is raised to a power, and multiplied by a gain.
+     */
+    public static final int POWER = 1;
+
+    /**
+     * The gain moves smoothly from a low to a high value around a threshold.
+     */
+    public static final int SIGMOID = 2;
+
+    /**
+     * The speed is interpolated between the points of a custom curve.
+     */
+    public static final int PIECEWISE = 3;
+
+    /**
+     * The number of segments in the precomputed tables.
+     */
+    private static final int SIZE = 256;
+
+    /**
+     * The range of the values over which the curves are precomputed, unless specified otherwise.
+     */
+    private static final double DEFAULT_RANGE = 10;
+
+    private final int _type;
+    private final String _spec;
+    private final double[] _table;
+    private final double _scale;
+    private final double _slope;
+
+    /**
+     * Initializes the current instance with a precomputed table.
+     *
+     * @param type  The type of the curve.
+     * @param spec  The specification of the curve.
+     * @param table The speeds at {@link #SIZE} + 1 evenly spaced values between zero and the range.
+     * @param range The largest value in the table.
+     */
+    private TransferFunction(int type, String spec, double[] table, double range) {
+        _type  = type;
+        _spec  = spec;
+        _table = table;
+        _scale = SIZE / range;
+        _slope = (table[SIZE] - table[SIZE - 1]) * _scale;
+    }
+
+    /**
+     * Creates a curve which multiplies the value by a constant gain.
+     *
+     * @param gain The gain.
+     *
+     * @return A new curve instance.
+     */
+    public static TransferFunction linear(double gain) {
+        return build(LINEAR, "linear:" + gain, DEFAULT_RANGE, new double[] { gain });
+    }
+
+    /**
+     * Creates a curve which raises the value to a power: speed = gain * value ^ exponent.
+     * An exponent above one gives less speed to small values, and more to large ones.
+     *
+     * @param gain     The gain.
+     * @param exponent The exponent, which has to be positive.
+     * @param range    The value above which the curve continues linearly.
+     *
+     * @return A new curve instance.
+     */
+    public static TransferFunction power(double gain, double exponent, double range) {
+        if (exponent <= 0) {
+            throw new IllegalArgumentException("The exponent has to be positive.");
+        }
+
+        return build(POWER, "power:" + gain + "," + exponent + "," + range, range, new double[] { gain, exponent });
+    }
+
+    /**
+     * Creates a curve whose gain moves smoothly from a low to a high value around a threshold:
+     * speed = value * (low + (high - low) / (1 + e ^ ((threshold - value) / width))).
+     *
+     * @param low       The gain of small values.
+     * @param high      The gain of large values.
+     * @param threshold The value at which the gain is halfway between the two.
+     * @param width     The width of the transition, which has to be positive.
+     * @param range     The value above which the curve continues linearly.
+     *
+     * @return A new curve instance.
+     */
+    public static TransferFunction sigmoid(double low, double high, double threshold, double width, double range) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("The width has to be positive.");
+        }
+
+        return build(SIGMOID, "sigmoid:" + low + "," + high + "," + threshold + "," + width + "," + range, range, new double[] { low, high, threshold, width });
+    }
+
+    /**
+     * Creates a curve which interpolates the speed between the specified points. The curve starts from zero,
+     * unless the first point is at zero, and continues with the slope of its last segment.
+     *
+     * @param values The values of the points, which have to be increasing and not negative.
+     * @param speeds The speeds at the points.
+     *
+     * @return A new curve instance.
+     */
+    public static TransferFunction piecewise(double[] values, double[] speeds) {
+        if (values.length == 0 || values.length != speeds.length) {
+            throw new IllegalArgumentException("The curve needs the same number of values and speeds.");
+        }
+
+        StringBuilder spec = new StringBuilder("piecewise:");
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < 0 || i > 0 && values[i] <= values[i - 1]) {
+                throw new IllegalArgumentException("The values of the curve have to be increasing and not negative.");
+            }
+
+            spec.append(i == 0 ? "" : ",").append(values[i]).append('=').append(speeds[i]);
+        }
+
+        double[] points = new double[values.length * 2];
+
+        for (int i = 0; i < values.length; i++) {
+            points[i * 2]     = values[i];
+            points[i * 2 + 1] = speeds[i];
+        }
+
+        double range = values[values.length - 1];
+        return build(PIECEWISE, spec.toString(), range > 0 ? range : DEFAULT_RANGE, points);
+    }
+
+    /**
+     * Creates a curve from its specification: the type of the curve, followed by a colon and its arguments,
+     * separated by commas, in the same order as the parameters of the factory methods. The range is optional.
+     * The points of a piecewise curve are written as value=speed.
+     *
+     * @param spec The specification of the curve, for example "power:4,1.5".
+     *
+     * @return A new curve instance.
+     *
+     * @throws IllegalArgumentException This exception is thrown if the specification is not valid.
+     */
+    public static TransferFunction parse(String spec) throws IllegalArgumentException {
+        int idx = spec.indexOf(':');
+        String type = (idx == -1 ? spec : spec.substring(0, idx)).trim().toLowerCase();
+        String[] args = idx == -1 || spec.substring(idx + 1).trim().isEmpty() ? new String[0] : spec.substring(idx + 1).split(",");
+
+        try {
+            switch (type) {
+                case "linear":
+                    expect(spec, args, 1, 1);
+                    return linear(Double.parseDouble(args[0].trim()));
+
+                case "power":
+                    expect(spec, args, 2, 3);
+                    return power(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()), args.length > 2 ? Double.parseDouble(args[2].trim()) : DEFAULT_RANGE);
+
+                case "sigmoid":
+                    expect(spec, args, 4, 5);
+                    return sigmoid(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()), Double.parseDouble(args[2].trim()), Double.parseDouble(args[3].trim()), args.length > 4 ? Double.parseDouble(args[4].trim()) : DEFAULT_RANGE);
+
+                case "piecewise":
+                    expect(spec, args, 1, Integer.MAX_VALUE);
+
+                    double[] values = new double[args.length];
+                    double[] speeds = new double[args.length];
+
+                    for (int i = 0; i < args.length; i++) {
+                        int eq = args[i].indexOf('=');
+
+                        if (eq == -1) {
+                            throw new IllegalArgumentException("Points of the curve should be written as value=speed: " + spec);
+                        }
+
+                        values[i] = Double.parseDouble(args[i].substring(0, eq).trim());
+                        speeds[i] = Double.parseDouble(args[i].substring(eq + 1).trim());
+                    }
+
+                    return piecewise(values, speeds);
+
+                default:
+                    throw new IllegalArgumentException("Unknown transfer function: " + spec);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number in transfer function: " + spec, ex);
+        }
+    }
+
+    /**
+     * Creates the curve of the specified engine type, as set in the "airmouse.curve.{type}" system property,
+     * see {@see DataProcessorEngine#getTypeName}, or the default curve of the type, which is linear.
+     * An invalid specification is logged, and the default curve is used instead.
+     *
+     * @param type {@link DataProcessorEngine#ACCELEROMETER}, {@link DataProcessorEngine#GYROSCOPE} or
+     *             {@link DataProcessorEngine#FUSION}.
+     *
+     * @return A new curve instance.
+     */
+    public static TransferFunction forType(int type) {
+        String spec = System.getProperty("airmouse.curve." + DataProcessorEngine.getTypeName(type));
+        TransferFunction def = linear(type == DataProcessorEngine.GYROSCOPE ? 10 : 1);
+
+        if (spec == null) {
+            return def;
+        }
+
+        try {
+            return parse(spec);
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(ServerManager.class.getName()).log(Level.WARNING, "Invalid transfer function, using " + def, ex);
+            return def;
+        }
+    }
+
+    /**
+     * Gets the type of the curve.
+     *
+     * @return {@link #LINEAR}, {@link #POWER}, {@link #SIGMOID} or {@link #PIECEWISE}.
+     */
+    public int getType() {
+        return _type;
+    }
+
+    /**
+     * Maps the specified value to a speed, keeping its sign.
+     *
+     * @param value The calibrated sensor value.
+     *
+     * @return The speed of the mouse.
+     */
+    public double apply(double value) {
+        double pos = Math.abs(value) * _scale;
+        double speed;
+
+        if (pos < SIZE) {
+            int i = (int)pos;
+            speed = _table[i] + (_table[i + 1] - _table[i]) * (pos - i);
+        } else {
+            speed = _table[SIZE] + (pos - SIZE) / _scale * _slope;
+        }
+
+        return value < 0 ? -speed : speed;
+    }
+
+    /**
+     * Returns the specification of the current instance, which {@link #parse} accepts.
+     *
+     * @return Specification of the curve.
+     */
+    @Override
+    public String toString() {
+        return _spec;
+    }
+
+    /**
+     * Precomputes the table of a curve.
+     *
+     * @param type   The type of the curve.
+     * @param spec   The specification of the curve.
+     * @param range  The largest value in the table.
+     * @param params The parameters of the curve.
+     *
+     * @return A new curve instance.
+     */
+    private static TransferFunction build(int type, String spec, double range, double[] params) {
+        if (!(range > 0)) {
+            throw new IllegalArgumentException("The range has to be positive.");
+        }
+
+        double[] table = new double[SIZE + 1];
+
+        for (int i = 0; i <= SIZE; i++) {
+            table[i] = evaluate(type, params, range * i / SIZE);
+        }
+
+        return new TransferFunction(type, spec, table, range);
+    }
+
+    /**
+     * Evaluates a curve at the specified value, which is slow, and only done when precomputing the table.
+     *
+     * @param type   The type of the curve.
+     * @param params The parameters of the curve.
+     * @param x      The value, which is not negative.
+     *
+     * @return The speed at the value.
+     */
+    private static double evaluate(int type, double[] params, double x) {
+        switch (type) {
+            case POWER:
+                return params[0] * Math.pow(x, params[1]);
+
+            case SIGMOID:
+                return x * (params[0] + (params[1] - params[0]) / (1 + Math.exp((params[2] - x) / params[3])));
+
+            case PIECEWISE:
+                double prevX = 0, prevY = 0;
+
+                for (int i = 0; i < params.length; i += 2) {
+                    if (x <= params[i]) {
+                        return params[i] == prevX ? params[i + 1] : prevY + (params[i + 1] - prevY) * (x - prevX) / (params[i] - prevX);
+                    }
+
+                    prevX = params[i];
+                    prevY = params[i + 1];
+                }
+
+                return prevY;
+
+            default:
+                return params[0] * x;
+        }
+    }
+
+    /**
+     * Verifies the number of arguments in a specification.
+     *
+     * @param spec The specification of the curve.
+     * @param args The arguments of the curve.
+     * @param min  The minimum number of arguments.
+     * @param max  The maximum number of arguments.
+     *
+     * @throws IllegalArgumentException This exception is thrown if the number of arguments is not valid.
+     */
+    private static void expect(String spec, String[] args, int min, int max) throws IllegalArgumentException {
+        if (args.length < min || args.length > max) {
+            throw new IllegalArgumentException("Wrong number of arguments in transfer function: " + spec);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *  Multi-threaded UDP server implementation to receive sensor data out-of-band of the TCP connection.
+ *
+ *  Since sensor data is only relevant until the next sample arrives, sending it over TCP means that a single
+ *  lost segment delays every sample queued behind it, which are then all replayed late. Clients which have
+ *  negotiated a protocol version during the handshake are given the port of this server and a token for their
+ *  session, and may then send their sensor data as datagrams. Every other packet stays on the TCP connection.
+ *
+ *  Each datagram consists of the 64-bit session token, a 32-bit sequence number, and a single sensor data frame
+ *  as specified by {@see BinaryProtocol}, all little-endian. Datagrams which are not newer than the last applied
+ *  one are dropped, instead of moving the cursor with stale data. The sensor data is handed over to the session, which
+ *  processes it on its own thread, see {@link Session#offerDatagram}.
+ *
+ *  @author RoliSoft
+ */
+public class UdpDataServer implements Runnable {
+
+    private ServerManager _serverManager;
+    private Thread _thread;
+    private DatagramSocket _server;
+    private SecureRandom _random;
+    private volatile long _dropped;
+
+    /**
+     * Initializes this instance.
+     *
+     * @param serverManager The manager instance.
+     */
+    public UdpDataServer(ServerManager serverManager) {
+        _serverManager = serverManager;
+        _random = new SecureRandom();
+    }
+
+    /**
+     * Gets the current instance of the server manager.
+     *
+     * @return Server manager instance.
+     */
+    public ServerManager getServerManager() {
+        return _serverManager;
+    }
+
+    /**
+     * Gets the port of the UDP server, or -1 if it is not listening.
+     *
+     * @return Port of the UDP server or -1.
+     */
+    public int getPort() {
+        return _server == null || _server.isClosed() ? -1 : _server.getLocalPort();
+    }
+
+    /**
+     * Gets the number of datagrams which were dropped since the server was started,
+     * either because they arrived out of order or they were duplicates.
+     *
+     * @return Number of dropped datagrams.
+     */
+    public long getDroppedCount() {
+        return _dropped;
+    }
+
+    /**
+     * Allows the client of the specified session to send sensor data to this server.
+     * The datagrams are accepted until the session is closed, and only from the address of the client.
+     *
+     * @param session The session of the client.
+     *
+     * @return The session token which has to be sent with each datagram.
+     */
+    public long open(Session session) {
+        long token;
+        do {
+            token = _random.nextLong();
+        } while (token == 0);
+
+        session.setDataToken(token);
+
+        return token;
+    }
+
+    /**
+     * Starts the UDP server in the background asynchronously.
+     *
+     * @throws IOException Forwarded exception shall the server fail to start.
+     */
+    public void start() throws IOException {
+        stop();
+
+        DatagramChannel channel = DatagramChannel.open();
+        _serverManager.getSocketProfile().apply(channel);
+        channel.bind(new InetSocketAddress(0));
+
+        _server = channel.socket();
+        _thread = _serverManager.newThread("AirMouse UDP data", this);
+        _thread.start();
+    }
+
+    /**
+     * Stops the UDP server, if it is running, and waits for its thread to finish.
+     * Please note, connected clients on the TCP server will not be affected by this.
+     */
+    public void stop() {
+        if (_server != null) {
+            _server.close();
+        }
+
+        ServerManager.stopThread(_thread);
+        _thread = null;
+    }
+
+    /**
+     * Runs in a separate thread, where it waits indefinitely for datagrams, and if they belong to one of the
+     * sessions and are newer than the last one, passes the sensor data to that session.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run() {
+        byte[] recv = new byte[64];
+        double[] sample = new double[DataProcessorEngine.SAMPLE_SIZE];
+
+        DatagramPacket packet = new DatagramPacket(recv, recv.length);
+        ByteBuffer buf = ByteBuffer.wrap(recv).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            packet.setLength(recv.length);
+
+            try {
+                _server.receive(packet);
+            } catch (IOException ex) {
+                if (_server.isClosed()) {
+                    break;
+                }
+
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                continue;
+            }
+
+            if (DiagnosticLog.DATAGRAMS.sample()) {
+                DiagnosticLog.DATAGRAMS.log("Data packet received from {0}", packet.getAddress());
+            }
+
+            if (packet.getLength() < 8 + 4 + 2) {
+                continue;
+            }
+
+            Session session = find(buf.getLong(0));
+
+            if (session == null || !packet.getAddress().equals(session.getAddress())) {
+                continue;
+            }
+
+            int len = buf.get(12) & 0xFF;
+
+            if (13 + len > packet.getLength() || !BinaryProtocol.decodeSample(buf, 14, buf.get(13), len, sample)) {
+                continue;
+            }
+
+            if (!session.acceptDataSequence(buf.getInt(8))) {
+                _dropped++;
+                continue;
+            }
+
+            session.offerDatagram(sample);
+        }
+    }
+
+    /**
+     * Finds the session to which the specified token was given.
+     *
+     * @param token The session token.
+     *
+     * @return The session, or null if none of the connected clients have the token.
+     */
+    private Session find(long token) {
+        if (token == 0) {
+            return null;
+        }
+
+        for (Session session : _serverManager.getSessions()) {
+            if (session.getDataToken() == token && !session.isClosed()) {
+                return session;
+            }
+        }
+
+        return null;
+    }
+
+}
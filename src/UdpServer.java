@@ -1,13 +1,23 @@
 import java.io.IOException;
 import java.net.*;
-import java.util.Collections;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  *  Multi-threaded UDP server implementation to listen and answer discovery broadcasts.
  *
+ *  Since every phone on the network may broadcast discovery requests, the responder does not allocate anything
+ *  per datagram: requests are received into a single reused direct buffer and matched byte-by-byte, and the reply
+ *  is encoded once and only rebuilt when the port of the TCP server or the local addresses change.
+ *
+ *  The reply holds the local address on the same subnet as the requesting device, as selected by the
+ *  {@see InterfaceTable}, so that devices are not sent to an address they cannot reach on multi-homed hosts.
+ *
  *  @author RoliSoft
  */
 public class UdpServer implements Runnable {
@@ -18,9 +28,24 @@ public class UdpServer implements Runnable {
      */
     public static final int BCAST_PORT = 8337;
 
+    /**
+     * The discovery request, which is matched as a prefix of the datagram, after any leading whitespace.
+     */
+    private static final byte[] DISCOVER = "RS-AirMouse discover".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * The size of the receive buffer. Longer datagrams are truncated, as only their beginning is of interest.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 256;
+
     private ServerManager _serverManager;
     private Thread _thread;
-    private DatagramSocket _server;
+    private DatagramChannel _server;
+    private ByteBuffer _recv;
+    private InterfaceTable _interfaces;
+    private IdentityHashMap<InterfaceTable.Entry, ByteBuffer> _replies;
+    private InterfaceTable.Entry[] _replyEntries;
+    private int _replyPort;
 
     /**
      * Initializes this instance.
@@ -29,6 +54,10 @@ public class UdpServer implements Runnable {
      */
     public UdpServer(ServerManager serverManager) {
         _serverManager = serverManager;
+        _recv = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        _interfaces = new InterfaceTable();
+        _replies = new IdentityHashMap<>();
+        _replyPort = -1;
     }
 
     /**
@@ -41,7 +70,16 @@ public class UdpServer implements Runnable {
     }
 
     /**
-     * Starts the TCP server in the background asynchronously.
+     * Gets the table of local addresses, from which the address given to the devices is selected.
+     *
+     * @return Interface table instance.
+     */
+    public InterfaceTable getInterfaceTable() {
+        return _interfaces;
+    }
+
+    /**
+     * Starts the UDP server in the background asynchronously.
      *
      * @throws java.io.IOException Forwarded exception shall the servers fail to start.
      *                     Such issue may occur if two instances are running of the server,
@@ -50,24 +88,39 @@ public class UdpServer implements Runnable {
     public void start() throws IOException {
         stop();
 
-        _server = new DatagramSocket(BCAST_PORT);
-        _thread = new Thread(this);
+        _server = DatagramChannel.open();
+        _serverManager.getSocketProfile().apply(_server);
+
+        try {
+            _server.bind(new InetSocketAddress(BCAST_PORT));
+        } catch (IOException ex) {
+            _server.close();
+            throw ex;
+        }
+
+        _thread = _serverManager.newThread("AirMouse discovery", this);
         _thread.start();
+
+        _interfaces.start(_serverManager);
     }
 
     /**
-     * Stops the UDP server, if it is running.
+     * Stops the UDP server, if it is running, and waits for its thread to finish.
      * Please note, connected clients on the TCP server will not be affected by this.
      */
     public void stop() {
         if (_server != null) {
-            _server.close();
+            try {
+                _server.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
         }
 
-        if (_thread != null) {
-            _thread.stop();
-            _thread = null;
-        }
+        ServerManager.stopThread(_thread);
+        _thread = null;
+
+        _interfaces.stop();
     }
 
     /**
@@ -78,33 +131,34 @@ public class UdpServer implements Runnable {
      */
     @Override
     public void run() {
-        while (_thread != null) {
-            byte[] recv = new byte[15000];
+        while (!Thread.currentThread().isInterrupted()) {
+            SocketAddress sender;
 
-            DatagramPacket packet = new DatagramPacket(recv, recv.length);
+            _recv.clear();
 
             try {
-                _server.receive(packet);
+                sender = _server.receive(_recv);
+            } catch (ClosedChannelException ex) {
+                break;
             } catch (IOException ex) {
                 Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                continue;
             }
 
-            Logger.getLogger(ServerManager.class.getName()).log(Level.INFO, "Packet received from {0}", packet.getAddress().getHostAddress());
+            _recv.flip();
 
-            String data = new String(packet.getData()).trim();
+            if (DiagnosticLog.DATAGRAMS.sample()) {
+                DiagnosticLog.DATAGRAMS.log("Discovery packet received from {0}", sender);
+            }
 
-            if (!data.contentEquals("RS-AirMouse discover")) {
+            if (!isDiscover(_recv)) {
                 continue;
             }
 
-            byte[] send = ("RS-AirMouse " + getLocalAddress() + " " + _serverManager.getPort()).getBytes();
-
-            DatagramPacket resp;
             try {
-                resp = new DatagramPacket(send, send.length, packet.getSocketAddress());
-                _server.send(resp);
-            } catch (SocketException ex) {
-                Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
+                _server.send(getReply(((InetSocketAddress)sender).getAddress()), sender);
+            } catch (ClosedChannelException ex) {
+                break;
             } catch (IOException ex) {
                 Logger.getLogger(ServerManager.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -112,42 +166,64 @@ public class UdpServer implements Runnable {
     }
 
     /**
-     * Gets the local address to which the client can connect back to.
+     * Decides whether the received datagram is a discovery request: after any leading whitespace, it has to start
+     * with the request, which is followed either by the end of the datagram, or by whitespace.
+     *
+     * @param buf The received datagram.
      *
-     * @return Local IP address.
+     * @return Value indicating whether the datagram is a discovery request.
      */
-    public String getLocalAddress() {
-        String laddr = "";
+    private static boolean isDiscover(ByteBuffer buf) {
+        int pos = buf.position();
+        int lim = buf.limit();
 
-        try {
-            Enumeration<NetworkInterface> nets = NetworkInterface.getNetworkInterfaces();
+        while (pos < lim && (buf.get(pos) & 0xFF) <= ' ') {
+            pos++;
+        }
 
-            for (NetworkInterface netint : Collections.list(nets)) {
-                if (laddr.length() != 0) {
-                    break;
-                }
+        if (lim - pos < DISCOVER.length) {
+            return false;
+        }
 
-                if (!netint.isUp() || netint.isLoopback() || netint.isVirtual() || netint.getDisplayName().contains("VMware")) {
-                    continue;
-                }
+        for (int i = 0; i < DISCOVER.length; i++, pos++) {
+            if (buf.get(pos) != DISCOVER[i]) {
+                return false;
+            }
+        }
 
-                for (InetAddress iaddr : Collections.list(netint.getInetAddresses())) {
-                    if (!iaddr.isSiteLocalAddress() || iaddr instanceof Inet6Address) {
-                        continue;
-                    }
+        return pos == lim || (buf.get(pos) & 0xFF) <= ' ';
+    }
 
-                    laddr = iaddr.getHostAddress();
-                    break;
-                }
-            }
+    /**
+     * Gets the encoded reply to the discovery request of the specified device. The replies are cached for each local
+     * address, and only rebuilt when the port of the TCP server or the entries of the interface table change.
+     *
+     * @param remote The address of the requesting device.
+     *
+     * @return The reply, ready to be sent.
+     */
+    private ByteBuffer getReply(InetAddress remote) {
+        int port = _serverManager.getPort();
+        InterfaceTable.Entry[] entries = _interfaces.getEntries();
+
+        if (port != _replyPort || entries != _replyEntries) {
+            _replies.clear();
+            _replyPort = port;
+            _replyEntries = entries;
+        }
 
-            if (laddr.length() == 0) {
-                laddr = InetAddress.getLocalHost().getHostAddress();
-            }
-        } catch (Exception ex) {
-            Logger.getLogger(MainWindow.class.getName()).log(Level.SEVERE, null, ex);
+        InterfaceTable.Entry entry = _interfaces.select(remote);
+        ByteBuffer reply = _replies.get(entry);
+
+        if (reply == null) {
+            byte[] send = ("RS-AirMouse " + entry.getHostAddress() + " " + port).getBytes();
+
+            reply = ByteBuffer.allocateDirect(send.length);
+            reply.put(send);
+            _replies.put(entry, reply);
         }
 
-        return laddr;
+        reply.rewind();
+        return reply;
     }
 }